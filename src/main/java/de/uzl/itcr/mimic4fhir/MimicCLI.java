@@ -16,10 +16,14 @@
  ******************************************************************************/
 package de.uzl.itcr.mimic4fhir;
 
+import java.util.Map;
+
 import org.springframework.util.StopWatch;
 
 import de.uzl.itcr.mimic4fhir.model.manager.ModelVersion;
+import de.uzl.itcr.mimic4fhir.work.Compression;
 import de.uzl.itcr.mimic4fhir.work.Config;
+import de.uzl.itcr.mimic4fhir.work.Encoding;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -46,12 +50,54 @@ public class MimicCLI implements Runnable {
 	@Option(names = "-validate", defaultValue = "false", description = "Validates the Resources")
 	boolean validateResources;
 
+	@Option(names = "--validators", defaultValue = "2", description = "Number of threads validating resources in the background")
+	int validationThreads;
+
+	@Option(names = "--sample", description = "Part of the resources of a type to validate, e.g. Observation=0.01 (* for all other types)")
+	Map<String, Double> validationSampleRates;
+
+	@Option(names = "--report", defaultValue = "validation-report.csv", description = "File of the aggregated validation messages (CSV, JSON if it ends with .json)")
+	String validationReport;
+
 	@Option(names = "--file", defaultValue = "output/", description = "Output Path the Resources")
 	String filePath;
 
 	@Option(names = "--fhir", description = "FHIR Endpoint to submit the Resources")
 	String fhirEndpoint;
 
+	@Option(names = "--json", defaultValue = "false", description = "Encode bundles as JSON instead of XML")
+	boolean json;
+
+	@Option(names = "--pretty", defaultValue = "false", description = "Pretty print the bundles")
+	boolean prettyPrint;
+
+	@Option(names = "--gzip", defaultValue = "false", description = "Compress the output files with gzip")
+	boolean gzip;
+
+	@Option(names = "--filewriters", defaultValue = "2", description = "Number of threads writing bundle files in the background")
+	int fileWriterThreads;
+
+	@Option(names = "--ndjson", defaultValue = "false", description = "Write the resources as NDJSON files (one per resource type) to the output path")
+	boolean ndjson;
+
+	@Option(names = "--maxfile", defaultValue = "1024", description = "Maximum size of one NDJSON file in MB")
+	int ndjsonMaxFileSize;
+
+	@Option(names = "--bundlesize", defaultValue = "15000", description = "Maximum number of resources in one bundle")
+	int bundleMaxResources;
+
+	@Option(names = "--bundlemb", defaultValue = "0", description = "Maximum size of one bundle in MB (0 = no limit)")
+	int bundleMaxSize;
+
+	@Option(names = "--autosize", defaultValue = "false", description = "Adapt the bundle size to the transaction latency of the FHIR server")
+	boolean autoBundleSize;
+
+	@Option(names = "--fullbundles", defaultValue = "false", description = "Repeat the complete basic bundle in every bundle of a split admission")
+	boolean fullBundles;
+
+	@Option(names = "--uploads", defaultValue = "8", description = "Maximum number of parallel transactions to the FHIR server")
+	int uploadConcurrency;
+
 	@Option(names = "--debug", defaultValue = "false", description = "Prints bundle into the console")
 	boolean debug;
 
@@ -64,6 +110,45 @@ public class MimicCLI implements Runnable {
 	@Option(names = "--thread", defaultValue = "false", description = "Enable Threading")
 	boolean useThreading;
 
+	@Option(names = "--threads", defaultValue = "10", description = "Number of conversion threads and database connections")
+	int threads;
+
+	@Option(names = "--batch", defaultValue = "0", description = "Number of patients loaded with one query per table (0 = query patients one by one)")
+	int batchSize;
+
+	@Option(names = "--fifo", defaultValue = "false", description = "Convert patients in the order they were selected instead of the most expensive first")
+	boolean fifo;
+
+	@Option(names = "--stream", defaultValue = "false", description = "Stream chart- and labevents from the database during conversion")
+	boolean streamEvents;
+
+	@Option(names = "--fetch", defaultValue = "1000", description = "Number of rows fetched per round trip when streaming events")
+	int fetchSize;
+
+	@Option(names = "--inprocess", defaultValue = "false", description = "Hand bundles to the output in-process instead of via RabbitMQ")
+	boolean useInProcessQueue;
+
+	@Option(names = "--writers", defaultValue = "4", description = "Number of output threads (queue workers or RabbitMQ consumers)")
+	int outputThreads;
+
+	@Option(names = "--maxqueue", defaultValue = "16", description = "Number of bundles waiting for output above which conversion pauses")
+	int outputQueueSize;
+
+	@Option(names = "--prefetch", defaultValue = "2", description = "Number of unacknowledged bundles per RabbitMQ consumer")
+	int prefetch;
+
+	@Option(names = "--cache", description = "Directory to persist terminology lookups across runs")
+	String terminologyCachePath;
+
+	@Option(names = "--warmup", defaultValue = "false", description = "Resolve all codes of the database before the conversion")
+	boolean warmupTerminology;
+
+	@Option(names = "--lookups", defaultValue = "8", description = "Number of parallel terminology requests during warm-up")
+	int warmupThreads;
+
+	@Option(names = "--connections", defaultValue = "20", description = "Maximum number of connections per terminology server")
+	int lookupConnections;
+
 	@Option(names = "--kds", defaultValue = "false", description = "Enable to German MII KDS as the output")
 	boolean useKDS;
 
@@ -128,6 +213,36 @@ public class MimicCLI implements Runnable {
 
 		// Validation
 		configObj.setValidateResources(validateResources);
+		configObj.setValidationThreads(validationThreads);
+		configObj.setValidationSampleRates(validationSampleRates);
+		configObj.setValidationReport(validationReport);
+
+		// Threading
+		configObj.setThreads(threads);
+		configObj.setBatchSize(batchSize);
+		configObj.setCostScheduling(!fifo);
+		configObj.setStreamEvents(streamEvents);
+		configObj.setFetchSize(fetchSize);
+
+		// Output queue
+		configObj.setUseInProcessQueue(useInProcessQueue);
+		configObj.setOutputThreads(outputThreads);
+		configObj.setOutputQueueSize(outputQueueSize);
+		configObj.setPrefetch(prefetch);
+		configObj.setTerminologyCachePath(terminologyCachePath);
+		configObj.setEncoding(json ? Encoding.JSON : Encoding.XML);
+		configObj.setPrettyPrint(prettyPrint);
+		configObj.setCompression(gzip ? Compression.GZIP : Compression.NONE);
+		configObj.setFileWriterThreads(fileWriterThreads);
+		configObj.setUploadConcurrency(uploadConcurrency);
+		configObj.setBundleMaxResources(bundleMaxResources);
+		configObj.setBundleMaxSize(bundleMaxSize);
+		configObj.setAutoBundleSize(autoBundleSize);
+		// only used for the upload, other outputs repeat the basic bundle
+		configObj.setReferenceFollowUps(!fullBundles);
+		configObj.setWarmupTerminology(warmupTerminology);
+		configObj.setWarmupThreads(warmupThreads);
+		configObj.setLookupConnections(lookupConnections);
 
 		// ConceptMaps
 		configObj.setICD9toICD10GM(ICD9toICD10GM);
@@ -144,6 +259,11 @@ public class MimicCLI implements Runnable {
 				System.out.println("Using FHIR output to Server: " + fhirEndpoint);
 				app.setOutputMode(OutputMode.PUSH_SERVER);
 				configObj.setFhirServer(fhirEndpoint);
+			} else if (ndjson) {
+				System.out.println("Using NDJSON output to path: " + filePath);
+				app.setOutputMode(OutputMode.PRINT_NDJSON);
+				configObj.setFhirxmlFilePath(filePath);
+				configObj.setNdjsonMaxFileSize(ndjsonMaxFileSize);
 			} else {
 				System.out.println("Using file output to path: " + filePath);
 				app.setOutputMode(OutputMode.PRINT_FILE);
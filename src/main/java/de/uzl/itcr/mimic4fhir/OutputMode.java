@@ -19,14 +19,16 @@ package de.uzl.itcr.mimic4fhir;
 /**
  * Output-Mode: Where shall the data go?
  * -CONSOLE: Print to console
- * -FILE: Print to xml-Files
+ * -FILE: Print to xml- or json-Files (see Config)
  * -BOTH: Console and file
  * -SERVER: Push to a Fhir server
+ * -NDJSON: Write resources to NDJSON-Files (FHIR Bulk Data format)
  *
  */
 public enum OutputMode {
 	PRINT_CONSOLE,
 	PRINT_FILE,
 	PRINT_BOTH,
-	PUSH_SERVER
+	PUSH_SERVER,
+	PRINT_NDJSON
 }
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.concur;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StopWatch;
+
+import de.uzl.itcr.mimic4fhir.model.MPatient;
+import de.uzl.itcr.mimic4fhir.model.manager.StationManager;
+import de.uzl.itcr.mimic4fhir.queue.BundleQueue;
+import de.uzl.itcr.mimic4fhir.work.BundleSizePolicy;
+import de.uzl.itcr.mimic4fhir.work.Config;
+import de.uzl.itcr.mimic4fhir.work.ConnectDB;
+import de.uzl.itcr.mimic4fhir.work.ConnectDBPool;
+import de.uzl.itcr.mimic4fhir.work.SharedResourceRegistry;
+
+/**
+ * Converts a block of patients that is extracted with one query per table
+ * (see {@link ConnectDB#getPatientsBySubjectIds(List)})
+ */
+public class BatchConversionThread implements Runnable {
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchConversionThread.class);
+
+	private ConnectDBPool connectDBPool;
+	private BundleQueue bundleQueue;
+	private List<String> patientIds;
+	private int firstPatNumber;
+	private StationManager stations;
+	private SharedResourceRegistry sharedResources;
+	private BundleSizePolicy sizePolicy;
+	private boolean validate;
+	private Config config;
+
+	public BatchConversionThread(BundleQueue bundleQueue, List<String> patientIds, int firstPatNumber,
+			StationManager stations, SharedResourceRegistry sharedResources, BundleSizePolicy sizePolicy, Config config,
+			boolean validateResources, ConnectDBPool dbPool) {
+		this.bundleQueue = bundleQueue;
+		this.patientIds = patientIds;
+		this.firstPatNumber = firstPatNumber;
+		this.stations = stations;
+		this.sharedResources = sharedResources;
+		this.sizePolicy = sizePolicy;
+		this.validate = validateResources;
+		this.connectDBPool = dbPool;
+		this.config = config;
+	}
+
+	@Override
+	public void run() {
+		ConnectDB connectDB = null;
+		try {
+			connectDB = connectDBPool.borrow();
+
+			StopWatch watch = new StopWatch();
+			watch.start();
+			logger.info("[{}] - {} Patients - Query", this.firstPatNumber, this.patientIds.size());
+			List<MPatient> patients = connectDB.getPatientsBySubjectIds(this.patientIds);
+			watch.stop();
+			logger.info("[{}] - {} Patients - Queried in {} ms", this.firstPatNumber, this.patientIds.size(),
+					watch.getTotalTimeMillis());
+			if (patients == null) {
+				return;
+			}
+			if (!config.isStreamEvents()) {
+				// events already loaded -> connection can be used by other threads
+				connectDBPool.release(connectDB);
+				connectDB = null;
+			}
+
+			FHIRTransformer transformer = new FHIRTransformer(bundleQueue, sharedResources, sizePolicy, config, validate);
+			int patNumber = this.firstPatNumber;
+			for (MPatient mPat : patients) {
+				StopWatch patWatch = new StopWatch();
+				patWatch.start();
+				transformer.processPatient(mPat, patNumber, stations, connectDB);
+				patWatch.stop();
+				TimeMeasurements.getInstance().addTiming(patNumber, mPat.getPatientSubjectId(),
+						mPat.getAdmissions().size(), patWatch.getTotalTimeMillis());
+				patNumber++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		} finally {
+			connectDBPool.release(connectDB);
+		}
+	}
+}
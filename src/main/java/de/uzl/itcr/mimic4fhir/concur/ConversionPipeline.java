@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.concur;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StopWatch;
+
+import de.uzl.itcr.mimic4fhir.OutputMode;
+import de.uzl.itcr.mimic4fhir.model.manager.CharteventManager;
+import de.uzl.itcr.mimic4fhir.model.manager.ModelVersion;
+import de.uzl.itcr.mimic4fhir.model.manager.StationManager;
+import de.uzl.itcr.mimic4fhir.queue.BundleProcessor;
+import de.uzl.itcr.mimic4fhir.queue.BundleQueue;
+import de.uzl.itcr.mimic4fhir.queue.InProcessBundleQueue;
+import de.uzl.itcr.mimic4fhir.queue.RabbitBundleQueue;
+import de.uzl.itcr.mimic4fhir.queue.Receiver;
+import de.uzl.itcr.mimic4fhir.tools.FHIRInstanceValidator;
+import de.uzl.itcr.mimic4fhir.tools.TerminologyWarmup;
+import de.uzl.itcr.mimic4fhir.tools.ValidationStage;
+import de.uzl.itcr.mimic4fhir.work.BundleSizePolicy;
+import de.uzl.itcr.mimic4fhir.work.Config;
+import de.uzl.itcr.mimic4fhir.work.ConnectDB;
+import de.uzl.itcr.mimic4fhir.work.ConnectDBPool;
+import de.uzl.itcr.mimic4fhir.work.FHIRComm;
+import de.uzl.itcr.mimic4fhir.work.SharedResourceRegistry;
+
+/**
+ * Conversion engine used for serial and threaded runs. A patient passes the
+ * stages
+ * <ol>
+ * <li>extract: query the patient from the database ({@link ConnectDB})</li>
+ * <li>map: create the FHIR resources (resource managers)</li>
+ * <li>assemble: build the transaction bundles ({@link FHIRTransformer})</li>
+ * <li>serialise and sink: encode and write/upload the bundles
+ * ({@link BundleQueue}, {@link BundleProcessor})</li>
+ * </ol>
+ * Extract, map and assemble of one patient run on one conversion worker, each
+ * worker with its own database connection. The bundles are handed to the
+ * output workers of the queue, so both stages are sized independently
+ * (conversion workers, {@link Config#getOutputThreads()}). A serial run is the
+ * pipeline with one conversion worker.
+ * 
+ * The workers take the next patient from the queue of the executor when they
+ * are done. With {@link Config#isCostScheduling()} the patients are queued
+ * most expensive first and large patients are split into ranges of admissions
+ * ({@link CostScheduler}), so the run does not end with one worker busy.
+ */
+public class ConversionPipeline {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConversionPipeline.class);
+
+	private final Config config;
+	private final OutputMode outputMode;
+	private final int workers;
+
+	/**
+	 * Create pipeline
+	 * 
+	 * @param config     Config-Object
+	 * @param outputMode what to do with the bundles
+	 * @param workers    number of conversion workers (and database connections)
+	 */
+	public ConversionPipeline(Config config, OutputMode outputMode, int workers) {
+		this.config = config;
+		this.outputMode = outputMode;
+		this.workers = Math.max(1, workers);
+		if (config.isReferenceFollowUps() && outputMode != OutputMode.PUSH_SERVER) {
+			// conditional references are only resolved in a server transaction
+			logger.info("Follow-up bundles repeat the basic bundle for output mode {}", outputMode);
+			config.setReferenceFollowUps(false);
+		}
+	}
+
+	/**
+	 * Convert patients and wait until all bundles are written
+	 * 
+	 * @param topPatients number of patients, 0 for all patients
+	 * @param random      choose patients randomly
+	 */
+	public void run(int topPatients, boolean random) {
+		ConnectDBPool dbPool = new ConnectDBPool(config, workers);
+		// bundle limits of this run, adapted to the upload latency
+		BundleSizePolicy sizePolicy = new BundleSizePolicy(config);
+		FHIRComm fhirComm = new FHIRComm(config, sizePolicy);
+		BundleQueue bundleQueue = createBundleQueue(fhirComm);
+
+		if (config.getValidateResources()) {
+			// build the validation support while the database is queried, validation
+			// threads wait for it on their first validation
+			CompletableFuture.runAsync(FHIRInstanceValidator::prepare);
+		}
+
+		StationManager stations;
+		String[] patientIds;
+		Map<String, List<Long>> admissionCosts = null;
+		ConnectDB dbAccess = null;
+		try {
+			dbAccess = dbPool.borrow();
+			if (topPatients == 0) {
+				topPatients = dbAccess.getNumberOfPatients();
+			}
+			patientIds = dbAccess.getAmountOfPatientIds(topPatients, random);
+			if (config.isCostScheduling()) {
+				admissionCosts = dbAccess.getAdmissionCosts(Arrays.asList(patientIds));
+			}
+			stations = dbAccess.getStations();
+			if (config.getSpecification() == ModelVersion.KDS) {
+				Map<Integer, String> itemLabels = dbAccess.getChartItemLabels(CharteventManager.getMappedLabels());
+				if (itemLabels != null) {
+					CharteventManager.setItemLabels(itemLabels);
+				}
+			}
+			if (config.isWarmupTerminology()) {
+				new TerminologyWarmup(config).run(dbAccess);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+			return;
+		} finally {
+			dbPool.release(dbAccess);
+		}
+
+		SharedResourceRegistry sharedResources = createSharedResources(fhirComm, sizePolicy, stations);
+
+		StopWatch watch = new StopWatch();
+		watch.start();
+
+		CostScheduler scheduler = admissionCosts != null ? new CostScheduler(admissionCosts, workers) : null;
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		int batchSize = config.getBatchSize();
+		if (batchSize > 0) {
+			if (scheduler != null) {
+				patientIds = scheduler.order(patientIds);
+			}
+			// one query per table for a block of patients
+			for (int i = 0; i < topPatients; i += batchSize) {
+				List<String> batch = Arrays.asList(patientIds).subList(i, Math.min(i + batchSize, topPatients));
+				executor.submit(new BatchConversionThread(bundleQueue, batch, i, stations, sharedResources, sizePolicy,
+						config, config.getValidateResources(), dbPool));
+			}
+		} else if (scheduler != null) {
+			for (CostScheduler.Task task : scheduler.plan(patientIds)) {
+				executor.submit(new ConversionThread(bundleQueue, task.getPatientId(), task.getPatNumber(),
+						task.getFirstAdmission(), task.getEndAdmission(), stations, sharedResources, sizePolicy, config,
+						config.getValidateResources(), dbPool));
+			}
+		} else {
+			for (int i = 0; i < topPatients; i++) {
+				executor.submit(new ConversionThread(bundleQueue, patientIds[i], i, stations, sharedResources,
+						sizePolicy, config, config.getValidateResources(), dbPool));
+			}
+		}
+
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			watch.stop();
+			logger.info("Conversion of {} Patients complete in {} ms", topPatients, watch.getTotalTimeMillis());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		}
+		// end of queue, wait for output
+		bundleQueue.close();
+		dbPool.close();
+		if (config.getValidateResources()) {
+			ValidationStage.getInstance(config).close();
+		}
+		TimeMeasurements.getInstance().writeToFile();
+	}
+
+	/**
+	 * Create the queue between transformation and output: in-process or via
+	 * RabbitMQ
+	 * 
+	 * @param fhirComm Fhir-Communication used for output
+	 * @return queue to put finished bundles into
+	 */
+	private BundleQueue createBundleQueue(FHIRComm fhirComm) {
+		if (config.useInProcessQueue()) {
+			return new InProcessBundleQueue(new BundleProcessor(fhirComm, outputMode), config.getOutputQueueSize(),
+					config.getOutputThreads());
+		}
+
+		// Start Message-Receiver (handles bundle operations)
+		Receiver r = new Receiver();
+		r.setFhirConnector(fhirComm);
+		r.setOutputMode(outputMode);
+		r.setNumberOfConsumers(config.getOutputThreads());
+		r.setPrefetch(config.getPrefetch());
+		r.receive();
+
+		// Sender for sending bundle messages to queue
+		return new RabbitBundleQueue(fhirComm, config.getOutputQueueSize());
+	}
+
+	/**
+	 * Registry of the resources shared by all patients. Hospital and stations are
+	 * written before the conversion starts.
+	 * 
+	 * @param fhirComm   Fhir-Communication used for output
+	 * @param sizePolicy size policy of the run
+	 * @param stations   stations of the hospital
+	 * @return registry for the conversion
+	 */
+	private SharedResourceRegistry createSharedResources(FHIRComm fhirComm, BundleSizePolicy sizePolicy,
+			StationManager stations) {
+		BundleProcessor referenceDataProcessor = new BundleProcessor(fhirComm, outputMode);
+		SharedResourceRegistry registry = new SharedResourceRegistry(sizePolicy, stations,
+				referenceDataProcessor::processNow);
+		registry.shareStations();
+		return registry;
+	}
+}
@@ -22,21 +22,28 @@ import org.springframework.util.StopWatch;
 
 import de.uzl.itcr.mimic4fhir.model.MPatient;
 import de.uzl.itcr.mimic4fhir.model.manager.StationManager;
+import de.uzl.itcr.mimic4fhir.queue.BundleQueue;
+import de.uzl.itcr.mimic4fhir.work.BundleSizePolicy;
 import de.uzl.itcr.mimic4fhir.work.Config;
 import de.uzl.itcr.mimic4fhir.work.ConnectDB;
-import de.uzl.itcr.mimic4fhir.work.FHIRComm;
+import de.uzl.itcr.mimic4fhir.work.ConnectDBPool;
+import de.uzl.itcr.mimic4fhir.work.SharedResourceRegistry;
 
 public class ConversionThread implements Runnable {
 
 	private static final Logger logger = LoggerFactory.getLogger(ConversionThread.class);
 
 	// TransformerHelper helper
-	ConnectDB connectDB;
-	FHIRComm fhir;
+	ConnectDBPool connectDBPool;
+	BundleQueue bundleQueue;
 	private MPatient mPat;
 	private String patientId;
 	private int mPatNumber;
+	private int firstAdmission;
+	private int endAdmission;
 	private StationManager stations;
+	private SharedResourceRegistry sharedResources;
+	private BundleSizePolicy sizePolicy;
 	private boolean validate;
 	private Config config;
 
@@ -47,20 +54,42 @@ public class ConversionThread implements Runnable {
 	 * validate; }
 	 */
 
-	public ConversionThread(FHIRComm fhirComm, String patientID, int mPatNumber, StationManager stations, Config config,
-			boolean validateResources, ConnectDB dbAccess) {
-		this.fhir = fhirComm;
+	public ConversionThread(BundleQueue bundleQueue, String patientID, int mPatNumber, StationManager stations,
+			SharedResourceRegistry sharedResources, BundleSizePolicy sizePolicy, Config config,
+			boolean validateResources, ConnectDBPool dbPool) {
+		this(bundleQueue, patientID, mPatNumber, 0, Integer.MAX_VALUE, stations, sharedResources, sizePolicy, config,
+				validateResources, dbPool);
+	}
+
+	/**
+	 * Thread converting a range of the admissions of a patient
+	 * 
+	 * @param firstAdmission index of the first admission (ordered by hadm_id)
+	 * @param endAdmission   index after the last admission
+	 */
+	public ConversionThread(BundleQueue bundleQueue, String patientID, int mPatNumber, int firstAdmission,
+			int endAdmission, StationManager stations, SharedResourceRegistry sharedResources,
+			BundleSizePolicy sizePolicy, Config config, boolean validateResources, ConnectDBPool dbPool) {
+		this.firstAdmission = firstAdmission;
+		this.endAdmission = endAdmission;
+		this.bundleQueue = bundleQueue;
 		this.patientId = patientID;
 		this.mPatNumber = mPatNumber;
 		this.stations = stations;
+		this.sharedResources = sharedResources;
+		this.sizePolicy = sizePolicy;
 		this.validate = validateResources;
-		this.connectDB = dbAccess;
+		this.connectDBPool = dbPool;
 		this.config = config;
 	}
 
 	public void test() {
 		loadData();
-		FHIRTransformer transformer = new FHIRTransformer(fhir, config, validate);
+		if (mPat == null) {
+			logger.error("[{}] - Pat. {} - Query failed, patient skipped", this.mPatNumber, this.patientId);
+			return;
+		}
+		FHIRTransformer transformer = new FHIRTransformer(bundleQueue, sharedResources, sizePolicy, config, validate);
 		transformer.processPatient(mPat, mPatNumber, stations);
 	}
 
@@ -68,11 +97,37 @@ public class ConversionThread implements Runnable {
 	public void run() {
 		StopWatch watch = new StopWatch();
 		watch.start();
-		logger.info("[{}] - Pat. {} - Query", this.mPatNumber, this.patientId);
-		loadData();
-		logger.info("[{}] - Pat. {} - Convert", this.mPatNumber, this.patientId);
-		FHIRTransformer transformer = new FHIRTransformer(fhir, config, validate);
-		transformer.processPatient(mPat, mPatNumber, stations);
+		ConnectDB connectDB = null;
+		try {
+			// exclusive connection for this thread -> queries of different patients run
+			// in parallel
+			connectDB = connectDBPool.borrow();
+			if (this.firstAdmission > 0 || this.endAdmission < Integer.MAX_VALUE) {
+				logger.info("[{}] - Pat. {} - Query admissions {} to {}", this.mPatNumber, this.patientId,
+						this.firstAdmission, this.endAdmission - 1);
+			} else {
+				logger.info("[{}] - Pat. {} - Query", this.mPatNumber, this.patientId);
+			}
+			this.mPat = connectDB.getPatientBySubjectId(this.patientId, this.firstAdmission, this.endAdmission);
+			if (this.mPat == null) {
+				logger.error("[{}] - Pat. {} - Query failed, patient skipped", this.mPatNumber, this.patientId);
+				return;
+			}
+			if (!config.isStreamEvents()) {
+				// events already loaded -> connection can be used by other threads
+				connectDBPool.release(connectDB);
+				connectDB = null;
+			}
+			logger.info("[{}] - Pat. {} - Convert", this.mPatNumber, this.patientId);
+			FHIRTransformer transformer = new FHIRTransformer(bundleQueue, sharedResources, sizePolicy, config, validate);
+			transformer.processPatient(mPat, mPatNumber, stations, connectDB, this.firstAdmission);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+			return;
+		} finally {
+			connectDBPool.release(connectDB);
+		}
 		watch.stop();
 		logger.info("[{}] - Pat. {} - Done in {} ms", this.mPatNumber, this.patientId, watch.getTotalTimeMillis());
 		TimeMeasurements.getInstance().addTiming(this.mPatNumber, this.patientId, this.mPat.getAdmissions().size(),
@@ -80,6 +135,15 @@ public class ConversionThread implements Runnable {
 	}
 
 	private void loadData() {
-		this.mPat = connectDB.getPatientBySubjectIdSynchronized(this.patientId);
+		ConnectDB connectDB = null;
+		try {
+			connectDB = connectDBPool.borrow();
+			this.mPat = connectDB.getPatientBySubjectId(this.patientId);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		} finally {
+			connectDBPool.release(connectDB);
+		}
 	}
 }
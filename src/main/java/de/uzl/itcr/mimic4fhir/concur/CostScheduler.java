@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.concur;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders the conversion work by expected cost. The workers of the pipeline
+ * take the next task from a shared queue when they are done, so submitting the
+ * expensive tasks first keeps a single large patient from running alone at the
+ * end of the run. Patients whose admissions together cost more than a fair
+ * share of a worker are split into ranges of admissions.
+ */
+public class CostScheduler {
+
+	/**
+	 * Part of the work: a patient or a range of its admissions
+	 */
+	public static class Task {
+		private final String patientId;
+		private final int patNumber;
+		private final int firstAdmission;
+		private final int endAdmission;
+		private final long cost;
+
+		Task(String patientId, int patNumber, int firstAdmission, int endAdmission, long cost) {
+			this.patientId = patientId;
+			this.patNumber = patNumber;
+			this.firstAdmission = firstAdmission;
+			this.endAdmission = endAdmission;
+			this.cost = cost;
+		}
+
+		public String getPatientId() {
+			return patientId;
+		}
+
+		public int getPatNumber() {
+			return patNumber;
+		}
+
+		public int getFirstAdmission() {
+			return firstAdmission;
+		}
+
+		/**
+		 * @return index after the last admission of this task
+		 */
+		public int getEndAdmission() {
+			return endAdmission;
+		}
+
+		public long getCost() {
+			return cost;
+		}
+	}
+
+	private final Map<String, List<Long>> admissionCosts;
+	private final int workers;
+
+	/**
+	 * Create scheduler
+	 * 
+	 * @param admissionCosts costs of the admissions per patient (see
+	 *                       {@link de.uzl.itcr.mimic4fhir.work.ConnectDB#getAdmissionCosts(List)})
+	 * @param workers        number of conversion workers
+	 */
+	public CostScheduler(Map<String, List<Long>> admissionCosts, int workers) {
+		this.admissionCosts = admissionCosts;
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * Create tasks for the patients, most expensive first. The number of a patient
+	 * is its index in patientIds.
+	 * 
+	 * @param patientIds patients to convert
+	 * @return tasks in the order they should be started
+	 */
+	public List<Task> plan(String[] patientIds) {
+		long total = 0;
+		for (String patientId : patientIds) {
+			total += cost(patientId);
+		}
+		// at least two tasks per worker to even out the estimate
+		long target = Math.max(1, total / (2 * workers));
+
+		List<Task> tasks = new ArrayList<>();
+		for (int i = 0; i < patientIds.length; i++) {
+			List<Long> costs = admissionCosts.getOrDefault(patientIds[i], Collections.emptyList());
+			if (costs.size() <= 1 || cost(patientIds[i]) <= target) {
+				tasks.add(new Task(patientIds[i], i, 0, Integer.MAX_VALUE, cost(patientIds[i])));
+				continue;
+			}
+			int first = 0;
+			long rangeCost = 0;
+			for (int adm = 0; adm < costs.size(); adm++) {
+				if (adm > first && rangeCost + costs.get(adm) > target) {
+					tasks.add(new Task(patientIds[i], i, first, adm, rangeCost));
+					first = adm;
+					rangeCost = 0;
+				}
+				rangeCost += costs.get(adm);
+			}
+			tasks.add(new Task(patientIds[i], i, first, Integer.MAX_VALUE, rangeCost));
+		}
+		tasks.sort(Comparator.comparingLong(Task::getCost).reversed());
+		return tasks;
+	}
+
+	/**
+	 * Order the patients by cost, most expensive first (for batches of patients
+	 * that are queried together)
+	 * 
+	 * @param patientIds patients to convert
+	 * @return patients in the order they should be started
+	 */
+	public String[] order(String[] patientIds) {
+		List<String> ordered = new ArrayList<>();
+		Collections.addAll(ordered, patientIds);
+		ordered.sort(Comparator.comparingLong(this::cost).reversed());
+		return ordered.toArray(new String[0]);
+	}
+
+	private long cost(String patientId) {
+		long sum = 0;
+		for (Long cost : admissionCosts.getOrDefault(patientId, Collections.emptyList())) {
+			sum += cost;
+		}
+		return sum;
+	}
+}
@@ -20,58 +20,96 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
-import javax.json.Json;
-import javax.json.JsonObject;
-
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Location;
 import org.hl7.fhir.r4.model.Medication;
 import org.hl7.fhir.r4.model.MedicationAdministration;
 import org.hl7.fhir.r4.model.Observation;
-import org.hl7.fhir.r4.model.Organization;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.Practitioner;
 import org.hl7.fhir.r4.model.PractitionerRole;
 import org.hl7.fhir.r4.model.Procedure;
 import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
 
 import ca.uhn.fhir.model.primitive.IdDt;
 import de.uzl.itcr.mimic4fhir.model.*;
 import de.uzl.itcr.mimic4fhir.model.manager.*;
-import de.uzl.itcr.mimic4fhir.queue.Sender;
-import de.uzl.itcr.mimic4fhir.tools.FHIRInstanceValidator;
+import de.uzl.itcr.mimic4fhir.queue.BundleQueue;
+import de.uzl.itcr.mimic4fhir.tools.ValidationStage;
 import de.uzl.itcr.mimic4fhir.work.BundleControl;
+import de.uzl.itcr.mimic4fhir.work.BundleSizePolicy;
 import de.uzl.itcr.mimic4fhir.work.Config;
-import de.uzl.itcr.mimic4fhir.work.FHIRComm;
+import de.uzl.itcr.mimic4fhir.work.ConnectDB;
+import de.uzl.itcr.mimic4fhir.work.SharedResourceRegistry;
 
 public class FHIRTransformer {
 
-	private FHIRComm fhir;
-	private static FHIRInstanceValidator instanceValidator = FHIRInstanceValidator.getInstance();
+	private BundleQueue bundleQueue;
 
-	private Sender sendr = new Sender();
-	private BundleControl bundleC = new BundleControl();
+	private BundleControl bundleC;
 
-	private Organization hospital;
+	private SharedResourceRegistry sharedResources;
 	private HashMap<Integer, MCaregiver> caregivers;
 	private HashMap<String, String> locationsInBundle;
 	private HashMap<String, String> caregiversInBundle;
-	private HashMap<String, String> medicationInBundle;
+
+	// references of events to patient and encounter of the current bundle
+	private Reference patientReference;
+	private Reference encounterReference;
 
 	private boolean validateResources = false;
+	private ValidationStage validation;
 
 	private Config config;
 
-	public FHIRTransformer(FHIRComm fhir, Config config, boolean validateResources) {
-		this.fhir = fhir;
+	public FHIRTransformer(BundleQueue bundleQueue, SharedResourceRegistry sharedResources,
+			BundleSizePolicy sizePolicy, Config config, boolean validateResources) {
+		this.bundleQueue = bundleQueue;
+		this.sharedResources = sharedResources;
 		this.config = config;
 		this.validateResources = validateResources;
+		if (validateResources) {
+			this.validation = ValidationStage.getInstance(config);
+		}
+		this.bundleC = new BundleControl(sizePolicy);
 	}
 
 	public void processPatient(MPatient mimicPat, int numPat, StationManager stations) {
+		processPatient(mimicPat, numPat, stations, null);
+	}
+
+	/**
+	 * Convert a patient and send its bundles
+	 * 
+	 * @param mimicPat    patient to convert
+	 * @param numPat      number of the patient in this run
+	 * @param stations    stations of the hospital
+	 * @param eventSource connection to stream chart- and labevents from, null if
+	 *                    they are already loaded in the admissions
+	 */
+	public void processPatient(MPatient mimicPat, int numPat, StationManager stations, ConnectDB eventSource) {
+		processPatient(mimicPat, numPat, stations, eventSource, 0);
+	}
+
+	/**
+	 * Convert a part of the admissions of a patient and send its bundles
+	 * 
+	 * @param mimicPat       patient with the admissions to convert
+	 * @param numPat         number of the patient in this run
+	 * @param stations       stations of the hospital
+	 * @param eventSource    connection to stream chart- and labevents from, null
+	 *                       if they are already loaded in the admissions
+	 * @param firstAdmission index of the first admission of mimicPat among all
+	 *                       admissions of the patient (keeps bundle numbers
+	 *                       unique)
+	 */
+	public void processPatient(MPatient mimicPat, int numPat, StationManager stations, ConnectDB eventSource,
+			int firstAdmission) {
 		// Create Managers
 		PatientManager paManager = new PatientManager();
 		DiagnoseManager dManager = new DiagnoseManager();
@@ -86,10 +124,8 @@ public class FHIRTransformer {
 		Patient fhirPat = paManager.createResource(mimicPat, this.config);
 		locationsInBundle = new HashMap<String, String>();
 		caregiversInBundle = new HashMap<String, String>();
-		medicationInBundle = new HashMap<String, String>();
-		hospital = createTopHospital();
 		String patNumber;
-		int admissionIndex = 0;
+		int admissionIndex = firstAdmission;
 
 		// Add DiagnosticReports for each Patient if available
 
@@ -99,16 +135,15 @@ public class FHIRTransformer {
 					bundleC.addResourceToBundle(
 							imManager.createDiagnosticReport(mDiagnosticReport, this.config));
 				}
-				JsonObject message = Json.createObjectBuilder()
-						.add("number", numPat + "_" + bundleC.getInternalBundleNumber())
-						.add("bundle", fhir.getBundleAsString(bundleC.getTransactionBundle())).build();
-				sendr.send(message.toString());
+				bundleQueue.put(numPat + "_" + bundleC.getInternalBundleNumber(), bundleC.getTransactionBundle());
 				bundleC.resetBundle();
 			}
 		}
 
 		// All admissions of one patient
 		for (MAdmission admission : mimicPat.getAdmissions()) {
+			// bundles of an admission are numbered from 1 -> uploads keep their order
+			bundleC.resetInternalBundleNumber();
 
 			// First: Load/create fhir resources
 			Encounter enc = adManager.createAdmission(admission, stations, this.config);
@@ -154,33 +189,39 @@ public class FHIRTransformer {
 			 * admission.createFhirNoteObservationsFromMimic(fhirPat.getId(), enc.getId());
 			 */
 
+			// link diagnoses and procedures once - bundles already queued must not change
+			linkEncounter(admission, enc, conditions, procedures);
+
 			// create bundle without observations and medication:
 			createBasicBundle(fhirPat, admission, enc, conditions, procedures, stations);
 
-			// Medication only in first bundle of admission
-			// Prescriptions
+			// Medications are shared by all patients -> written once per run,
+			// medications without code can't be referenced conditionally -> in this bundle
+			List<Medication> sharedMedications = new ArrayList<>();
 			for (Medication med : medications) {
-				String identifier = med.getCode().getCodingFirstRep().getCode();
-				if (!medicationInBundle.containsKey(identifier)) {
-					bundleC.addUUIDResourceWithConditionToBundle(med,
-							"code=" + med.getCode().getCodingFirstRep().getCode());
-					medicationInBundle.put(identifier, med.getId());
-
-					if (validateResources) {
-						instanceValidator.validateAndPrint(med);
-					}
+				if (sharedResources.isShareable(med)) {
+					sharedMedications.add(med);
+				} else {
+					bundleC.addUUIDResourceToBundle(med);
+				}
+			}
+			sharedResources.share(sharedMedications);
+			if (validateResources) {
+				for (Medication med : medications) {
+					validation.submit(med);
 				}
 			}
 
 			// ..and MedicationAdministrations (with correct Medication as Reference)
-			for (MedicationAdministration madm : prescriptions) {
-				String identifier = medications.get(prescriptions.indexOf(madm)).getCode().getCodingFirstRep()
-						.getCode();
-				String medId = medicationInBundle.get(identifier);
-				madm.setMedication(new Reference(medId));
+			// medications.get(i) was created from the same prescription as prescriptions.get(i)
+			for (int i = 0; i < prescriptions.size(); i++) {
+				MedicationAdministration madm = prescriptions.get(i);
+				Medication med = medications.get(i);
+				madm.setMedication(sharedResources.isShareable(med) ? sharedResources.getReference(med)
+						: new Reference(med.getId()));
 				bundleC.addUUIDResourceToBundle(madm);
 				if (validateResources) {
-					instanceValidator.validateAndPrint(madm);
+					validation.submit(madm);
 				}
 			}
 
@@ -194,9 +235,9 @@ public class FHIRTransformer {
 				checkBundleLimit(patNumber, fhirPat, admission, enc, conditions, procedures, stations);
 
 				// Order important - these reference pat & encounter
-				bundleC.addResourceToBundle(o);
+				bundleC.addResourceToBundle(linkToAdmission(o));
 				if (validateResources) {
-					instanceValidator.validateAndPrint(o);
+					validation.submit(o);
 				}
 			}
 
@@ -204,19 +245,36 @@ public class FHIRTransformer {
 				// check if bundle is full
 				checkBundleLimit(patNumber, fhirPat, admission, enc, conditions, procedures, stations);
 
-				bundleC.addResourceToBundle(o);
+				bundleC.addResourceToBundle(linkToAdmission(o));
 
 				if (validateResources) {
-					instanceValidator.validateAndPrint(o);
+					validation.submit(o);
 				}
 			}
 
-			// Push bundle to queue
-			JsonObject message = Json.createObjectBuilder()
-					.add("number", patNumber + "_" + bundleC.getInternalBundleNumber())
-					.add("bundle", fhir.getBundleAsString(bundleC.getTransactionBundle())).build();
+			if (eventSource != null) {
+				// stream events from db directly into the bundle -> only the current bundle is held in memory
+				final String admNumber = patNumber;
+				eventSource.streamChartEvents(admission, mimicPat.getPatientSubjectId(), event -> {
+					checkBundleLimit(admNumber, fhirPat, admission, enc, conditions, procedures, stations);
+					Observation o = chManager.createResource(event, this.config);
+					bundleC.addResourceToBundle(linkToAdmission(o));
+					if (validateResources) {
+						validation.submit(o);
+					}
+				});
+				eventSource.streamLabEvents(admission, mimicPat.getPatientSubjectId(), event -> {
+					checkBundleLimit(admNumber, fhirPat, admission, enc, conditions, procedures, stations);
+					Observation o = laManager.createResource(event, this.config);
+					bundleC.addResourceToBundle(linkToAdmission(o));
+					if (validateResources) {
+						validation.submit(o);
+					}
+				});
+			}
 
-			sendr.send(message.toString());
+			// Push bundle to queue
+			bundleQueue.put(patNumber + "_" + bundleC.getInternalBundleNumber(), bundleC.getTransactionBundle());
 
 			// reset bundle and memory lists
 			bundleC.resetBundle();
@@ -228,20 +286,56 @@ public class FHIRTransformer {
 	private void checkBundleLimit(String numPat, Patient fhirPat, MAdmission admission, Encounter enc,
 			List<Condition> conditions, List<Procedure> procedures, StationManager stations) {
 
-		// if bundle exceeds 15000 resources -> start new bundle
-		if (bundleC.getNumberOfResources() > 15000) {
+		// if bundle reached the resource or size limit -> start new bundle
+		if (bundleC.isFull()) {
 			// Push bundle to queue
-			JsonObject message = Json.createObjectBuilder()
-					.add("number", numPat + "_" + bundleC.getInternalBundleNumber())
-					.add("bundle", fhir.getBundleAsString(bundleC.getTransactionBundle())).build();
-
-			sendr.send(message.toString());
+			bundleQueue.put(numPat + "_" + bundleC.getInternalBundleNumber(), bundleC.getTransactionBundle());
 
 			// reset bundle and memory lists
 			bundleC.resetBundle();
 			resetMemoryLists();
-			// reload basic bundle stuff
-			createBasicBundle(fhirPat, admission, enc, conditions, procedures, stations);
+			if (config.isReferenceFollowUps()) {
+				// basic bundle is persisted with the first bundle -> only reference it
+				patientReference = new Reference(conditionalReference(fhirPat, fhirPat.getIdentifierFirstRep()));
+				encounterReference = new Reference(conditionalReference(enc, enc.getIdentifierFirstRep()));
+			} else {
+				// reload basic bundle stuff
+				createBasicBundle(fhirPat, admission, enc, conditions, procedures, stations);
+			}
+		}
+	}
+
+	private String conditionalReference(Resource resource, Identifier identifier) {
+		return resource.fhirType() + "?identifier=" + identifier.getSystem() + "|" + identifier.getValue();
+	}
+
+	private Observation linkToAdmission(Observation o) {
+		o.setSubject(patientReference.copy());
+		o.getPartOf().clear();
+		o.addPartOf(encounterReference.copy());
+		return o;
+	}
+
+	private void linkEncounter(MAdmission admission, Encounter enc, List<Condition> conditions,
+			List<Procedure> procedures) {
+		enc.getDiagnosis().clear(); // clear all procedures & diagnoses
+		enc.getLocation().clear(); // clear all locations
+
+		// resources are created in the order of their source records -> same index
+		List<MDiagnose> diagnoses = admission.getDiagnoses();
+		for (int i = 0; i < conditions.size(); i++) {
+			int rank = diagnoses.get(i).getSeqNumber();
+
+			// set Condition in enc.diagnosis
+			enc.addDiagnosis().setCondition(new Reference(conditions.get(i).getId())).setRank(rank);
+		}
+
+		List<MProcedure> mProcedures = admission.getProcedures();
+		for (int i = 0; i < procedures.size(); i++) {
+			int rank = mProcedures.get(i).getSeqNumber();
+
+			// set Procedure in enc.diagnosis
+			enc.addDiagnosis().setCondition(new Reference(procedures.get(i).getId())).setRank(rank);
 		}
 	}
 
@@ -252,87 +346,67 @@ public class FHIRTransformer {
 		bundleC.addUUIDResourceWithConditionToBundle(fhirPat, "identifier="
 				+ fhirPat.getIdentifierFirstRep().getSystem() + "|" + fhirPat.getIdentifierFirstRep().getValue());
 
-		// Top of all: Hospital
-		bundleC.addUUIDResourceWithConditionToBundle(hospital, "identifier="
-				+ hospital.getIdentifierFirstRep().getSystem() + "|" + hospital.getIdentifierFirstRep().getValue());
-
-		enc.getDiagnosis().clear(); // clear all procedures & diagnoses
-
 		if (validateResources) {
-			instanceValidator.validateAndPrint(fhirPat);
-			instanceValidator.validateAndPrint(hospital);
+			validation.submit(fhirPat);
 		}
 
 		// Diagnoses
 		for (Condition c : conditions) {
-			int rank = admission.getDiagnoses().get(conditions.indexOf(c)).getSeqNumber();
-
-			// set Condition in enc.diagnosis
-			enc.addDiagnosis().setCondition(new Reference(c.getId())).setRank(rank);
-
 			// add Condition to bundle
 			bundleC.addUUIDResourceWithConditionToBundle(c,
 					"identifier=" + c.getIdentifierFirstRep().getSystem() + "|" + c.getIdentifierFirstRep().getValue());
 
 			if (validateResources) {
-				instanceValidator.validateAndPrint(c);
+				validation.submit(c);
 			}
 		}
 
 		// Procedures
 		for (Procedure p : procedures) {
-			int rank = admission.getProcedures().get(procedures.indexOf(p)).getSeqNumber();
-
-			// set Procedure in enc.diagnosis
-			enc.addDiagnosis().setCondition(new Reference(p.getId())).setRank(rank);
-
 			// add Procedure to bundle
 			bundleC.addUUIDResourceWithConditionToBundle(p,
 					"identifier=" + p.getIdentifierFirstRep().getSystem() + "|" + p.getIdentifierFirstRep().getValue());
 
 			if (validateResources) {
-				instanceValidator.validateAndPrint(p);
+				validation.submit(p);
 			}
 		}
 
 		// create transfer chain
+		// transfer encounters use the encounter classes of the KDS
+		if (this.config.getSpecification() == ModelVersion.KDS) {
+			for (MTransfer t : admission.getTransfers()) {
+				Location locWard = stations.getLocation(stations.getStation(t.getCareUnit()));
+
+				// Create transfer encounter
+				Encounter tEnc = new Encounter();
+				tEnc.setId(IdDt.newRandomUuid());
+				tEnc.setStatus(Encounter.EncounterStatus.FINISHED);
+				tEnc.setClass_(new Coding().setSystem(
+						"https://www.medizininformatik-initiative.de/fhir/core/CodeSystem/EncounterClassAdditionsDE")
+						.setCode("_ActEncounterCode").setDisplay("ActEncounterCode"));
+				tEnc.setSubject(enc.getSubject());
+				tEnc.setPeriod(new Period().setStart(t.getIntime()).setEnd(t.getOuttime()));
+				tEnc.addLocation().setLocation(sharedResources.getReference(locWard))
+						.setStatus(Encounter.EncounterLocationStatus.COMPLETED).setPhysicalType(locWard.getPhysicalType())
+						.setPeriod(new Period().setStart(t.getIntime()).setEnd(t.getOuttime()));
+				tEnc.setServiceProvider(
+						sharedResources.getReference(stations.getOrganization(stations.getStation(t.getCareUnit()))));
+				tEnc.setPartOf(new Reference(enc.getId()));
+
+				String wIdentifier = locWard.getIdentifierFirstRep().getValue();
+				String eIdentifier = tEnc.getIdentifierFirstRep().getValue();
+				if (!locationsInBundle.containsKey(wIdentifier)) {
+					// add to memory list:
+					locationsInBundle.put(wIdentifier, locWard.getId());
+
+					bundleC.addUUIDResourceWithConditionToBundle(tEnc,
+							"identifier=" + tEnc.getIdentifierFirstRep().getSystem() + "|" + eIdentifier);
+				}
 
-		enc.getLocation().clear(); // clear all locations -> to be newly added
-
-		for (MTransfer t : admission.getTransfers()) {
-			Location locWard = stations.getLocation(stations.getStation(t.getCareUnit()));
-
-			// Create transfer encounter
-			Encounter tEnc = new Encounter();
-			tEnc.setId(IdDt.newRandomUuid());
-			tEnc.setStatus(Encounter.EncounterStatus.FINISHED);
-			tEnc.setClass_(new Coding().setSystem(
-					"https://www.medizininformatik-initiative.de/fhir/core/CodeSystem/EncounterClassAdditionsDE")
-					.setCode("_ActEncounterCode").setDisplay("ActEncounterCode"));
-			tEnc.setSubject(enc.getSubject());
-			tEnc.setPeriod(new Period().setStart(t.getIntime()).setEnd(t.getOuttime()));
-			tEnc.addLocation().setLocation(new Reference(locWard.getId()))
-					.setStatus(Encounter.EncounterLocationStatus.COMPLETED).setPhysicalType(locWard.getPhysicalType())
-					.setPeriod(new Period().setStart(t.getIntime()).setEnd(t.getOuttime()));
-			tEnc.setServiceProvider(
-					new Reference(stations.getOrganization(stations.getStation(t.getCareUnit())).getId()));
-			tEnc.setPartOf(new Reference(enc.getId()));
-
-			String wIdentifier = locWard.getIdentifierFirstRep().getValue();
-			String eIdentifier = tEnc.getIdentifierFirstRep().getValue();
-			if (!locationsInBundle.containsKey(wIdentifier)) {
-				// add to memory list:
-				locationsInBundle.put(wIdentifier, locWard.getId());
-
-				bundleC.addUUIDResourceWithConditionToBundle(locWard,
-						"identifier=" + locWard.getIdentifierFirstRep().getSystem() + "|" + wIdentifier);
-				bundleC.addUUIDResourceWithConditionToBundle(tEnc,
-						"identifier=" + tEnc.getIdentifierFirstRep().getSystem() + "|" + eIdentifier);
-			}
-
-			if (validateResources) {
-				instanceValidator.validateAndPrint(locWard);
-				instanceValidator.validateAndPrint(tEnc);
+				if (validateResources) {
+					validation.submit(tEnc);
+				}
 			}
 		}
 
@@ -340,8 +414,13 @@ public class FHIRTransformer {
 		bundleC.addUUIDResourceWithConditionToBundle(enc,
 				"identifier=" + enc.getIdentifierFirstRep().getSystem() + "|" + enc.getIdentifierFirstRep().getValue());
 
+		// events of this bundle reference patient and encounter in the bundle
+		patientReference = new Reference(fhirPat.getId());
+		encounterReference = new Reference(enc.getId());
+		bundleC.basicBundleComplete();
+
 		if (validateResources) {
-			instanceValidator.validateAndPrint(enc);
+			validation.submit(enc);
 		}
 	}
 
@@ -358,19 +437,19 @@ public class FHIRTransformer {
 			bundleC.addUUIDResourceWithConditionToBundle(pFhir,
 					"identifier=" + pFhir.getIdentifierFirstRep().getSystem() + "|" + identifier);
 			if (validateResources) {
-				instanceValidator.validateAndPrint(pFhir);
+				validation.submit(pFhir);
 			}
 
 			PractitionerRole roleFhir = cgHere.getFhirRepresentationRole();
 			if (roleFhir != null) {
 				roleFhir.setPractitioner(new Reference(pFhir.getId()));
-				roleFhir.setOrganization(new Reference(hospital.getId()));
+				roleFhir.setOrganization(sharedResources.getReference(sharedResources.getHospital()));
 				bundleC.addUUIDResourceWithConditionToBundle(roleFhir,
 						"identifier=" + roleFhir.getIdentifierFirstRep().getSystem() + "|"
 								+ roleFhir.getIdentifierFirstRep().getValue());
 
 				if (validateResources) {
-					instanceValidator.validateAndPrint(roleFhir);
+					validation.submit(roleFhir);
 				}
 			}
 		} else {
@@ -379,21 +458,8 @@ public class FHIRTransformer {
 		return id;
 	}
 
-	private Organization createTopHospital() {
-		// Create a "dummy" Organization that is "top player" of PractitionerRoles and
-		// Locations
-		Organization hospital = new Organization();
-		hospital.addIdentifier().setSystem("http://www.imi-mimic.de").setValue("hospital");
-		hospital.addType().addCoding().setCode("prov").setSystem("http://hl7.org/fhir/organization-type")
-				.setDisplay("Healthcare Provider");
-		hospital.setName("IMI-Mimic Hospital");
-		hospital.setId(IdDt.newRandomUuid());
-		return hospital;
-	}
-
 	private void resetMemoryLists() {
 		caregiversInBundle.clear();
 		locationsInBundle.clear();
-		medicationInBundle.clear();
 	}
 }
@@ -37,6 +37,9 @@ public class MChartevent {
 	 
 	 //Type
 	 private String measurementType; 
+
+	 //Item (d_items)
+	 private int itemId;
 	 
 	 //Value + ValueNum
 	 private String value;
@@ -70,6 +73,14 @@ public class MChartevent {
 		this.recordDate = recordDate;
 	}
 
+	public int getItemId() {
+		return itemId;
+	}
+
+	public void setItemId(int itemId) {
+		this.itemId = itemId;
+	}
+
 	public String getMeasurementType() {
 		return measurementType;
 	}
@@ -16,17 +16,47 @@
  ******************************************************************************/
 package de.uzl.itcr.mimic4fhir.model.manager;
 
+import java.util.Map;
+import java.util.Set;
+
 import org.hl7.fhir.r4.model.*;
 
 import de.uzl.itcr.mimic4fhir.model.MChartevent;
+import de.uzl.itcr.mimic4fhir.model.manager.FragmentTemplates.Fragment;
+import de.uzl.itcr.mimic4fhir.tools.CodeTable;
 import de.uzl.itcr.mimic4fhir.work.Config;
 
 public class CharteventManager extends ModelManager<Observation, MChartevent>{
 
+    private static final CodeTable<String> LOINC_BY_LABEL = CodeTable.load("mappings/chartevent-loinc.csv",
+            "http://loinc.org");
+    private static final Coding VITAL_SIGN = new Coding("http://loinc.org", "75186-7", "Vital Sign");
+
+    // set once before the conversion, null until then
+    private static volatile CodeTable<Integer> loincByItemId = null;
+
     public CharteventManager(){
         super();
     }
 
+    /**
+     * Labels of the chartevents with a LOINC code
+     *
+     * @return labels in mimic_icu.d_items
+     */
+    public static Set<String> getMappedLabels() {
+        return LOINC_BY_LABEL.keys();
+    }
+
+    /**
+     * Look up LOINC codes by itemid instead of label
+     *
+     * @param labels label per itemid of the mapped chartevents
+     */
+    public static void setItemLabels(Map<Integer, String> labels) {
+        loincByItemId = LOINC_BY_LABEL.rekey(labels);
+    }
+
     @Override
     public Observation createResource(MChartevent mChartevent, Config config){
         Observation observation = new Observation();
@@ -34,74 +64,33 @@ public class CharteventManager extends ModelManager<Observation, MChartevent>{
         observation.setStatus(Observation.ObservationStatus.FINAL);
 
         CodeableConcept cc = new CodeableConcept();
+        FragmentTemplates templates = FragmentTemplates.of(config.getSpecification());
         switch(config.getSpecification()){
             case KDS:
                 //References the structure definition for the observation ('Vitalstatus') resource of the KDS resources
-                observation.getMeta().addProfile("https://www.medizininformatik-initiative.de/fhir/core/modul-person/StructureDefinition/Vitalstatus");
+                observation.getMeta().getProfile().add(templates.get(Fragment.CHARTEVENT_PROFILE));
 
                 //A category slice containing the code 'survey' is mandatory
-                observation.addCategory().addCoding().setSystem("http://terminology.hl7.org/CodeSystem/observation-category")
-                        .setCode("survey").setDisplay("Survey");
-
-                Coding loinc_coding = new Coding();
-                String label = mChartevent.getMeasurementType();
-                switch(label) {
-                    case ("Respiratory Rate"):
-                    case ("Respiratory Rate (Set)"):
-                    case ("Respiratory Rate (spontaneous)"):
-                    case ("Respiratory Rate (Total)"):
-                        loinc_coding.setCode("9279-1").setSystem("http://loinc.org").setDisplay("Respiratory Rate");
-                        break;
-                    case ("Heart Rate"):
-                        loinc_coding.setCode("8867-4").setSystem("http://loinc.org").setDisplay("Heart Rate");
-                        break;
-                    case ("PAR-Oxygen saturation"):
-                        loinc_coding.setCode("2708-6").setSystem("http://loinc.org").setDisplay("Oxygen Saturation");
-                    case ("Temp ApacheIIValue"):
-                    case ("LLE Temp"):
-                    case ("LUE Temp"):
-                    case ("RLE Temp"):
-                    case ("RUE Temp"):
-                        loinc_coding.setCode("8310-5").setSystem("http://loinc.org").setDisplay("Body Temperature");
-                        break;
-                    case ("Height"):
-                    case ("Height (cm)"):
-                        loinc_coding.setCode("8302-2").setSystem("http://loinc.org").setDisplay("Body Height");
-                        break;
-                    case ("Manual Blood Pressure Diastolic Left"):
-                    case ("Manual Blood Pressure Diastolic Right"):
-                    case ("Non Invasive Blood Pressure diastolic"):
-                    case ("Pulmonary Artery Pressure diastolic"):
-                    case ("ART BP Diastolic"):
-                    case ("Arterial Blood Pressure diastolic"):
-                        loinc_coding.setCode("8480-6").setSystem("http://loinc.org").setDisplay("Diastolic Blood Pressure");
-                        break;
-                    case ("Manual Blood Pressure Systolic Left"):
-                    case ("Manual Blood Pressure Systolic Right"):
-                    case ("Non Invasive Blood Pressure systolic"):
-                    case ("Pulmonary Artery Pressure systolic"):
-                    case ("ART BP Systolic"):
-                    case ("Arterial Blood Pressure systolic"):
-                        loinc_coding.setCode("8462-4").setSystem("http://loinc.org").setDisplay("Systolic Blood Pressure");
-                        break;
-                    default:
-                        // LOINC code for general vital sign is not contained in the magic LOINC codes table laid out by the
-                        // FHIR standard specification
-                        loinc_coding.setCode("75186-7").setSystem("http://loinc.org").setDisplay("Vital Sign");
+                observation.addCategory(templates.get(Fragment.CHARTEVENT_CATEGORY_SURVEY));
+
+                //LOINC code by itemid, by label if the itemids were not resolved
+                CodeTable<Integer> byItemId = loincByItemId;
+                Coding loinc_coding = byItemId != null ? byItemId.get(mChartevent.getItemId())
+                        : LOINC_BY_LABEL.get(mChartevent.getMeasurementType());
+                if (loinc_coding == null) {
+                    // LOINC code for general vital sign is not contained in the magic LOINC codes table laid out by the
+                    // FHIR standard specification
+                    loinc_coding = VITAL_SIGN.copy();
                 }
                 cc.addCoding(loinc_coding);
                 observation.setCode(cc);
 
                 //Expect all chartevents to be vital signs
-                observation.addCategory().addCoding().setSystem("http://hl7.org/fhir/observation-category")
-                        .setCode("vital_signs").setDisplay("Vital Signs");
+                observation.addCategory(templates.get(Fragment.CHARTEVENT_CATEGORY_VITAL_SIGNS));
 
                 //Actual result
                 if(mChartevent.hasNumVal()) {
-                    CodeableConcept value = new CodeableConcept(
-                            new Coding("https://www.medizininformatik-initiative.de/fhir/core/CodeSystem/Vitalstatus",
-                                    "X", "unbekannt"));
-                    observation.setValue(value);
+                    observation.setValue(templates.<CodeableConcept>get(Fragment.CHARTEVENT_VALUE_UNKNOWN));
                 }
                 break;
             case R4:
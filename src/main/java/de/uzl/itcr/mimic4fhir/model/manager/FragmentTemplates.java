@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.model.manager;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Type;
+
+/**
+ * Constant parts of the generated resources (profiles, categories, fixed
+ * codes), built once per specification. The managers add copies of these
+ * prototypes to their resources instead of building the same elements for
+ * every event.
+ */
+public final class FragmentTemplates {
+
+    /**
+     * Constant parts of the resources
+     */
+    public enum Fragment {
+        CHARTEVENT_PROFILE,
+        CHARTEVENT_CATEGORY_SURVEY,
+        CHARTEVENT_CATEGORY_VITAL_SIGNS,
+        CHARTEVENT_VALUE_UNKNOWN,
+        LABEVENT_PROFILE,
+        LABEVENT_CATEGORY,
+        LABEVENT_IDENTIFIER_TYPE,
+        LABEVENT_DATA_ABSENT_REASON,
+        LABEVENT_INTERPRETATION_ABNORMAL
+    }
+
+    private static final Map<ModelVersion, FragmentTemplates> TEMPLATES = new EnumMap<>(ModelVersion.class);
+
+    static {
+        for (ModelVersion specification : ModelVersion.values()) {
+            TEMPLATES.put(specification, new FragmentTemplates(specification));
+        }
+    }
+
+    private final Map<Fragment, Type> prototypes;
+
+    private FragmentTemplates(ModelVersion specification) {
+        Map<Fragment, Type> fragments = new EnumMap<>(Fragment.class);
+        switch (specification) {
+            case KDS:
+                fragments.put(Fragment.CHARTEVENT_PROFILE, new CanonicalType(
+                        "https://www.medizininformatik-initiative.de/fhir/core/modul-person/StructureDefinition/Vitalstatus"));
+                //A category slice containing the code 'survey' is mandatory
+                fragments.put(Fragment.CHARTEVENT_CATEGORY_SURVEY, new CodeableConcept(new Coding(
+                        "http://terminology.hl7.org/CodeSystem/observation-category", "survey", "Survey")));
+                fragments.put(Fragment.CHARTEVENT_CATEGORY_VITAL_SIGNS, new CodeableConcept(
+                        new Coding("http://hl7.org/fhir/observation-category", "vital_signs", "Vital Signs")));
+                fragments.put(Fragment.CHARTEVENT_VALUE_UNKNOWN, new CodeableConcept(new Coding(
+                        "https://www.medizininformatik-initiative.de/fhir/core/CodeSystem/Vitalstatus", "X", "unbekannt")));
+
+                fragments.put(Fragment.LABEVENT_PROFILE, new CanonicalType(
+                        "https://www.medizininformatik-initiative.de/fhir/core/modul-labor/StructureDefinition/ObservationLab"));
+                CodeableConcept labCategory = new CodeableConcept(
+                        new Coding("http://hl7.org/fhir/observation-category", "laboratory", "Laboratory"));
+                labCategory.addCoding(new Coding("http://loinc.org", "26436-6", "Laboratory studies"));
+                fragments.put(Fragment.LABEVENT_CATEGORY, labCategory);
+                fragments.put(Fragment.LABEVENT_IDENTIFIER_TYPE, new CodeableConcept(
+                        new Coding("http://terminology.hl7.org/CodeSystem/v2-0203", "OBI", "Optometrist license number")));
+                fragments.put(Fragment.LABEVENT_DATA_ABSENT_REASON, new CodeableConcept(new Coding(
+                        "http://terminology.hl7.org/CodeSystem/data-absent-reason", "asked-unknown", "Asked But Unknown")));
+                break;
+            case R4:
+                fragments.put(Fragment.LABEVENT_CATEGORY, new CodeableConcept(
+                        new Coding("http://hl7.org/fhir/observation-category", "laboratory", "Laboratory")));
+                break;
+        }
+        fragments.put(Fragment.LABEVENT_INTERPRETATION_ABNORMAL,
+                new CodeableConcept(new Coding("http://hl7.org/fhir/v2/0078", "A", "Abnormal")));
+        this.prototypes = Collections.unmodifiableMap(fragments);
+    }
+
+    /**
+     * Templates of a specification
+     *
+     * @param specification output specification
+     * @return templates of the specification
+     */
+    public static FragmentTemplates of(ModelVersion specification) {
+        return TEMPLATES.get(specification);
+    }
+
+    /**
+     * Copy of a constant part
+     *
+     * @param <T>      type of the fragment, e.g. CodeableConcept
+     * @param fragment constant part
+     * @return copy that can be added to a resource
+     * @throws IllegalArgumentException if the fragment is not used by this
+     *                                  specification
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Type> T get(Fragment fragment) {
+        Type prototype = this.prototypes.get(fragment);
+        if (prototype == null) {
+            throw new IllegalArgumentException("No template " + fragment + " for this specification");
+        }
+        return (T) prototype.copy();
+    }
+}
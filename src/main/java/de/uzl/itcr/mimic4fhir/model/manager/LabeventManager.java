@@ -16,10 +16,10 @@
  ******************************************************************************/
 package de.uzl.itcr.mimic4fhir.model.manager;
 
-import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.model.*;
 
 import de.uzl.itcr.mimic4fhir.model.MLabevent;
+import de.uzl.itcr.mimic4fhir.model.manager.FragmentTemplates.Fragment;
 import de.uzl.itcr.mimic4fhir.work.Config;
 
 public class LabeventManager extends ModelManager<Observation, MLabevent> {
@@ -31,26 +31,21 @@ public class LabeventManager extends ModelManager<Observation, MLabevent> {
     @Override
     public Observation createResource(MLabevent mLabevent, Config config){
         Observation observation = new Observation();
+        FragmentTemplates templates = FragmentTemplates.of(config.getSpecification());
 
         switch(config.getSpecification()){
             case KDS:
-                observation.getMeta().addProfile(
-                        "https://www.medizininformatik-initiative.de/fhir/core/modul-labor/StructureDefinition/ObservationLab");
+                observation.getMeta().getProfile().add(templates.get(Fragment.LABEVENT_PROFILE));
 
                 // Add identifier
                 observation.addIdentifier().setUse(Identifier.IdentifierUse.USUAL)
-                        .setType(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/v2-0203")
-                                .setCode("OBI").setDisplay("Optometrist license number")))
+                        .setType(templates.get(Fragment.LABEVENT_IDENTIFIER_TYPE))
                         .setSystem("http://www.imi-mimic.de/labevents").setValue(String.valueOf(mLabevent.getLabeventId()))
                         .setAssigner(new Reference(mLabevent.getPatId()));
 
                 // Add categories to the observation
-                CodeableConcept category = new CodeableConcept();
                 // All observations are laboratory observations
-                category.addCoding(new Coding().setSystem("http://hl7.org/fhir/observation-category").setCode("laboratory")
-                        .setDisplay("Laboratory"));
-                category.addCoding(
-                        new Coding().setSystem("http://loinc.org").setCode("26436-6").setDisplay("Laboratory studies"));
+                observation.addCategory(templates.get(Fragment.LABEVENT_CATEGORY));
 
                 // Actual result
                 if (mLabevent.hasNumVal()) {
@@ -61,21 +56,13 @@ public class LabeventManager extends ModelManager<Observation, MLabevent> {
                     observation.setValue(value);
                 } else {
                     // If the data is absent, add Data-Absent-Reason in the appropriate place
-                    Base child;
-                    try {
-                        child = observation.addChild("dataAbsentReason");
-                        child.castToCodeableConcept(child).addCoding()
-                                .setSystem("http://terminology.hl7.org/CodeSystem/data-absent-reason").setCode("asked-unknown")
-                                .setDisplay("Asked But Unknown");
-                    } catch (FHIRException e) {
-                        e.printStackTrace();
-                    }
+                    observation.setDataAbsentReason(templates.get(Fragment.LABEVENT_DATA_ABSENT_REASON));
                 }
                 break;
 
             case R4:
                 //all laboratory
-                observation.addCategory().addCoding().setSystem("http://hl7.org/fhir/observation-category").setCode("laboratory").setDisplay("Laboratory");
+                observation.addCategory(templates.get(Fragment.LABEVENT_CATEGORY));
 
                 //Actual result
                 if(mLabevent.hasNumVal()) {
@@ -126,9 +113,7 @@ public class LabeventManager extends ModelManager<Observation, MLabevent> {
 
         // Interpretation (from "flag")
         if (mLabevent.isAbnormal()) {
-            cc = new CodeableConcept();
-            cc.addCoding().setSystem("http://hl7.org/fhir/v2/0078").setCode("A").setDisplay("Abnormal");
-            observation.addInterpretation(cc);
+            observation.addInterpretation(templates.get(Fragment.LABEVENT_INTERPRETATION_ABNORMAL));
         }
 
         // Add comment if available; this is not mandatory
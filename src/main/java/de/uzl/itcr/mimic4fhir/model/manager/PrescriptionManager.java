@@ -18,6 +18,7 @@ package de.uzl.itcr.mimic4fhir.model.manager;
 
 import ca.uhn.fhir.model.primitive.IdDt;
 import de.uzl.itcr.mimic4fhir.model.MPrescription;
+import de.uzl.itcr.mimic4fhir.tools.CodeTable;
 import de.uzl.itcr.mimic4fhir.tools.Ingredient;
 import de.uzl.itcr.mimic4fhir.tools.RemoteInformationLookup;
 import de.uzl.itcr.mimic4fhir.tools.RxNormConcept;
@@ -32,6 +33,9 @@ import java.util.List;
 
 public class PrescriptionManager extends ModelManager<Medication, MPrescription>{
 
+    //EDQM codes of the medication forms (form_rx)
+    private static final CodeTable<String> FORMS = CodeTable.load("mappings/medication-form-edqm.csv", null);
+
     public PrescriptionManager(){
         super();
     }
@@ -75,91 +79,9 @@ public class PrescriptionManager extends ModelManager<Medication, MPrescription>
 
                 //Add container information (i.e. form of the medication itself; tablets, capsule etc.)
                 if (mPrescription.getFormRx() != null) {
-                    Coding form = new Coding();
-                    boolean matchesAny = true;
-                    switch (mPrescription.getFormRx()) {
-                        case "AMP":
-                            form.setCode("30001000").setDisplay("Ampulle");
-                            break;
-                        case "BOTTLE":
-                            form.setCode("30008000").setDisplay("Flasche");
-                            break;
-                        case "CART":
-                            form.setCode("300014000").setDisplay("Patrone");
-                            break;
-                        //Does it actually correspond to cream?
-                        case "CRE":
-                        case "CREA":
-                            form.setCode("10502000").setDisplay("Creme");
-                            break;
-                        case "DROPS":
-                            form.setCode("10307000").setDisplay("Tropfen zur Anwendug in der Mundhöhle");
-                            break;
-                        case "EPI PEN":
-                        case "PEN":
-                            form.setCode("13114000").setDisplay("Pen");
-                            break;
-                        case "GEL":
-                        case "GELS":
-                            form.setCode("1053000").setDisplay("Gel");
-                            break;
-                        case "GRAN":
-                            form.setCode("10204000").setDisplay("Granulat");
-                            break;
-                        //Missing: GUM, GUMMY
-                        //IMP = Implant or Impregnated Material?
-                        case "IMP":
-                            form.setCode("11301000").setDisplay("Implantat");
-                            break;
-                        case "INH":
-                            form.setCode("30026500").setDisplay("Inhalator");
-                            break;
-                        case "INJ":
-                        case "SYRI":
-                            form.setCode("30029000").setDisplay("Injektionsspritze");
-                            break;
-                        //Missing: INS
-                        //Missing: LIQ
-                        case "LOZ":
-                            form.setCode("10321000").setDisplay("Lutschtablette");
-                            break;
-                        case "OINT":
-                            form.setCode("10504000").setDisplay("Salbe");
-                            break;
-                        case "OOINT":
-                            form.setCode("10214005").setDisplay("Salbe zur Anwendung in der Mundhoehle");
-                            break;
-                        //PAS = Paste or Pastille?
-                        //Missing: PTCH
-                        //Missing: PWDR
-                        //Missing: SOLN
-                        case "PUMP":
-                            form.setCode("30035000").setDisplay("Dosierpumpe");
-                            break;
-                        //Missing: STK (Stick probably)
-                        case "SUPP":
-                            form.setCode("11013000").setDisplay("Zäpfchen");
-                            break;
-                        //Missing: SUSP
-                        case "SYRP":
-                            form.setCode("11017000").setDisplay("Sirup");
-                            break;
-                        //Does TAB mean Tablet?
-                        case "TAB":
-                        case "TABLET":
-                            form.setCode("10219000").setDisplay("Tablette");
-                            break;
-                        case "TUBE":
-                            form.setCode("30067000").setDisplay("Tube");
-                            break;
-                        case "VIAL":
-                            form.setCode("30069000").setDisplay("Durchstechflasche");
-                            break;
-                        default:
-                            matchesAny = false;
-                    }
+                    Coding form = FORMS.get(mPrescription.getFormRx());
                     //Since providing a form isn't mandatory it is only added if a matching code was found
-                    if (matchesAny) {
+                    if (form != null) {
                         m.setForm(new CodeableConcept().addCoding(form));
                     }
                 }
@@ -205,7 +127,7 @@ public class PrescriptionManager extends ModelManager<Medication, MPrescription>
                 //RxNorm
                 List<RxNormConcept> rxNorm = null;
                 String existingCode = null;
-                RxNormLookup rxLookup = new RxNormLookup();
+                RxNormLookup rxLookup = RemoteInformationLookup.getInstance(config).rxNormLookup;
                 if(mPrescription.getNdc() != null && mPrescription.getNdc().compareTo("0") != 0) {
                     //we do have a NDC:
                     existingCode = mPrescription.getNdc();
@@ -21,6 +21,7 @@ import de.uzl.itcr.mimic4fhir.model.MStation;
 
 import org.hl7.fhir.r4.model.*;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 
@@ -43,6 +44,10 @@ public class StationManager {
         }
     }
 
+    public Collection<MStation> getStations() {
+        return this.stationMap.values();
+    }
+
     public MStation getStation(String stationName) {
         if (stationName != null) {
             return this.stationMap.get(stationName);
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.queue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import de.uzl.itcr.mimic4fhir.OutputMode;
+import de.uzl.itcr.mimic4fhir.work.FHIRComm;
+
+/**
+ * Performs the output action for a bundle depending on the OutputMode
+ *
+ */
+public class BundleProcessor {
+	private final FHIRComm fhirConnector;
+	private final OutputMode outputMode;
+
+	/**
+	 * @param fhirConnector Fhir-Communication class
+	 * @param outputMode    how to process bundles
+	 */
+	public BundleProcessor(FHIRComm fhirConnector, OutputMode outputMode) {
+		this.fhirConnector = fhirConnector;
+		this.outputMode = outputMode;
+	}
+
+	/**
+	 * Perform action for bundle
+	 * 
+	 * @param number identification of the bundle
+	 * @param bundle the bundle
+	 * @return completes when the bundle is written or accepted by the server
+	 *         (uploads run in the background) or held by the uploader for its
+	 *         predecessor, exceptionally if that failed
+	 */
+	public CompletableFuture<Void> process(String number, Bundle bundle) {
+		switch (outputMode) {
+		case PRINT_CONSOLE:
+			fhirConnector.printBundle(bundle);
+			break;
+		case PRINT_FILE:
+			return fhirConnector.printBundleToFile(number, bundle);
+		case PRINT_BOTH:
+			fhirConnector.printBundle(bundle);
+			return fhirConnector.printBundleToFile(number, bundle);
+		case PUSH_SERVER:
+			return fhirConnector.uploadBundle(number, bundle);
+		case PRINT_NDJSON:
+			fhirConnector.printBundleAsNdjson(bundle);
+			break;
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Perform action for a bundle that later bundles depend on: transactions are
+	 * sent immediately and the method returns once the server answered or the
+	 * file is written
+	 * 
+	 * @param number identification of the bundle
+	 * @param bundle the bundle
+	 */
+	public void processNow(String number, Bundle bundle) {
+		if (outputMode == OutputMode.PUSH_SERVER) {
+			fhirConnector.bundleToServer(bundle);
+		} else {
+			// files are written in the background -> wait for this one
+			process(number, bundle).join();
+		}
+	}
+
+	/**
+	 * Finish output after the last bundle (wait for uploads, flush open files)
+	 */
+	public void close() {
+		fhirConnector.close();
+	}
+}
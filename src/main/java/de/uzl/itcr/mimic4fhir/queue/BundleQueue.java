@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.queue;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Hand-over of finished bundles from the transformers to the output (console,
+ * file, server)
+ *
+ */
+public interface BundleQueue {
+
+	/**
+	 * Put a finished bundle into the queue. The bundle must not be changed by the
+	 * caller afterwards.
+	 * 
+	 * @param number identification of the bundle (patient_admission_bundle)
+	 * @param bundle the bundle
+	 */
+	void put(String number, Bundle bundle);
+
+	/**
+	 * No more bundles will be put: signal end of conversion and release resources
+	 */
+	void close();
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.queue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded in-process queue between transformers and output: bundle objects are
+ * handed to a pool of sink workers directly, without serialization and without
+ * a message broker. Transformers block if all slots are taken.
+ *
+ */
+public class InProcessBundleQueue implements BundleQueue {
+	private final static Logger logger = LoggerFactory.getLogger(InProcessBundleQueue.class);
+
+	// marks the end of the queue for one worker
+	private final static BundleMessage END = new BundleMessage("0", null);
+
+	private final BlockingQueue<BundleMessage> queue;
+	private final ExecutorService workers;
+	private final int numberOfWorkers;
+	private final BundleProcessor processor;
+
+	/**
+	 * Create queue and start sink workers
+	 * 
+	 * @param processor       output action for each bundle
+	 * @param capacity        maximum number of bundles waiting in the queue
+	 * @param numberOfWorkers number of sink worker threads
+	 */
+	public InProcessBundleQueue(BundleProcessor processor, int capacity, int numberOfWorkers) {
+		this.processor = processor;
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+		this.numberOfWorkers = Math.max(1, numberOfWorkers);
+		this.workers = Executors.newFixedThreadPool(this.numberOfWorkers);
+		for (int i = 0; i < this.numberOfWorkers; i++) {
+			this.workers.submit(this::work);
+		}
+	}
+
+	@Override
+	public void put(String number, Bundle bundle) {
+		try {
+			queue.put(new BundleMessage(number, bundle));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while queueing bundle {}", number);
+		}
+	}
+
+	/**
+	 * Waits until all queued bundles are processed and stops the workers
+	 */
+	@Override
+	public void close() {
+		try {
+			for (int i = 0; i < numberOfWorkers; i++) {
+				queue.put(END);
+			}
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			processor.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		}
+	}
+
+	private void work() {
+		while (true) {
+			BundleMessage message;
+			try {
+				message = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (message == END) {
+				return;
+			}
+			try {
+				processor.process(message.number, message.bundle);
+			} catch (Exception e) {
+				logger.error("Processing of bundle {} failed: {}", message.number, e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class BundleMessage {
+		private final String number;
+		private final Bundle bundle;
+
+		BundleMessage(String number, Bundle bundle) {
+			this.number = number;
+			this.bundle = bundle;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.queue;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import de.uzl.itcr.mimic4fhir.work.FHIRComm;
+
+/**
+ * Sends bundles as serialized json messages to the RabbitMQ queue, where they
+ * are picked up by the {@link Receiver}
+ *
+ */
+public class RabbitBundleQueue implements BundleQueue {
+	private final FHIRComm fhir;
+	private final Sender sendr;
+	private long sentBundles = 0;
+
+	/**
+	 * Creates new channel connection to the queue
+	 * 
+	 * @param fhir          Fhir-Communication class for serialization
+	 * @param maxQueueDepth number of waiting bundles above which put blocks; 0 for
+	 *                      no limit
+	 */
+	public RabbitBundleQueue(FHIRComm fhir, int maxQueueDepth) {
+		this.fhir = fhir;
+		this.sendr = new Sender(maxQueueDepth);
+	}
+
+	@Override
+	public void put(String number, Bundle bundle) {
+		JsonObject message = Json.createObjectBuilder().add("number", number)
+				.add("bundle", fhir.getBundleAsString(bundle)).build();
+		send(message.toString());
+	}
+
+	@Override
+	public synchronized void close() {
+		// Push end-Message to queue, number of bundles sent before -> receiver knows
+		// when it is done
+		JsonObject message = Json.createObjectBuilder().add("number", String.valueOf(sentBundles))
+				.add("bundle", "END").build();
+		sendr.send(message.toString());
+
+		// close connection to queue
+		sendr.close();
+	}
+
+	private synchronized void send(String message) {
+		// channels must not be used for publishing by several threads at once
+		sendr.send(message);
+		sentBundles++;
+	}
+}
@@ -21,8 +21,13 @@ import com.rabbitmq.client.Connection;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -43,32 +48,40 @@ import org.slf4j.LoggerFactory;
 /**
  * RabbitMQ consumer class for receiving and processing bundles
  * 
+ * Bundles are processed by several consumers (one channel each) in parallel.
+ * Messages are acknowledged only after the output action succeeded, so bundles
+ * of a crashed run stay in the queue. Bundles the uploader holds in memory for
+ * a bundle later in the queue are acknowledged at once, otherwise they would
+ * fill the prefetch window of all consumers.
+ * 
  * @author Stefanie Ververs
  *
  */
 public class Receiver {
 	private final static Logger logger = LoggerFactory.getLogger(Receiver.class);
 	private final static String QUEUE_NAME = "BundleQ";
-	private Channel channel;
+	private final List<Channel> channels = new ArrayList<>();
 	private FHIRComm fhirConnector;
 	private OutputMode outputMode;
+	private ConnectionFactory factory;
 	private Connection connection;
+	private ExecutorService consumerExecutor;
+	private BundleProcessor processor;
+	private int numberOfConsumers = 1;
+	private int prefetch = 1;
+
+	// number of bundles that are done (acked or dropped) and number announced by
+	// the END message
+	private final AtomicLong processedBundles = new AtomicLong();
+	private volatile long expectedBundles = -1;
+	private boolean closed = false;
 
 	/**
-	 * Constructor - creates new channel connection
+	 * Constructor - prepares channel connection
 	 */
 	public Receiver() {
-		ConnectionFactory factory = new ConnectionFactory();
+		factory = new ConnectionFactory();
 		factory.setHost("localhost");
-		try {
-			connection = factory.newConnection();
-			channel = connection.createChannel();
-			logger.debug(String.valueOf(channel == null));
-		} catch (Exception e) {
-			logger.error("Exception has been thrown!");
-			logger.error(e.getMessage());
-			e.printStackTrace();
-		}
 	}
 
 	/**
@@ -89,73 +102,133 @@ public class Receiver {
 		this.outputMode = outputMode;
 	}
 
+	/**
+	 * Set the number of parallel consumers (channels and threads)
+	 * 
+	 * @param numberOfConsumers
+	 */
+	public void setNumberOfConsumers(int numberOfConsumers) {
+		this.numberOfConsumers = Math.max(1, numberOfConsumers);
+	}
+
+	/**
+	 * Set the maximum number of unacknowledged bundles per consumer
+	 * 
+	 * @param prefetch
+	 */
+	public void setPrefetch(int prefetch) {
+		this.prefetch = Math.max(1, prefetch);
+	}
+
 	/**
 	 * Start listening (and receiving) messages
 	 */
 	public void receive() {
-
+		processor = new BundleProcessor(fhirConnector, outputMode);
 		try {
-			channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-			Consumer consumer = new DefaultConsumer(channel) {
-				@Override
-				public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
-						byte[] body) throws IOException {
-
-					// bundle xml from json message data
-					InputStream is = new ByteArrayInputStream(body);
-					JsonReader jsonReader = Json.createReader(is);
-					JsonObject json = jsonReader.readObject();
-					jsonReader.close();
-
-					String number = json.getString("number");
-					String bundleXml = json.getString("bundle");
-
-					if (bundleXml.equals("END")) {
-						// End this queue..
-						channel.basicCancel(consumerTag);
-						try {
-							channel.close();
-							connection.close();
-						} catch (TimeoutException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-					} else {
-						// process bundle
-						try {
-							performAction(number, bundleXml);
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-
+			// deliveries of different channels are dispatched on different threads
+			consumerExecutor = Executors.newFixedThreadPool(numberOfConsumers);
+			connection = factory.newConnection(consumerExecutor);
+
+			for (int i = 0; i < numberOfConsumers; i++) {
+				Channel channel = connection.createChannel();
+				channel.queueDeclare(QUEUE_NAME, false, false, false, null);
+				channel.basicQos(prefetch);
+				channels.add(channel);
+
+				Consumer consumer = new DefaultConsumer(channel) {
+					@Override
+					public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+							byte[] body) throws IOException {
+						handleMessage(getChannel(), envelope, body);
 					}
-				}
-			};
-			channel.basicConsume(QUEUE_NAME, true, consumer);
-
+				};
+				channel.basicConsume(QUEUE_NAME, false, consumer);
+			}
 		} catch (Exception e) {
-			// TODO Auto-generated catch block
+			logger.error("Exception has been thrown!");
+			logger.error(e.getMessage());
 			e.printStackTrace();
 		}
 
 	}
 
-	private void performAction(String number, String bundle) {
-		// Perform action for bundle
-		switch (outputMode) {
-		case PRINT_CONSOLE:
-			fhirConnector.printBundleAsXml(fhirConnector.getBundleFromString(bundle));
-			break;
-		case PRINT_FILE:
-			fhirConnector.printBundleAsXmlToFile(number, fhirConnector.getBundleFromString(bundle));
-			break;
-		case PRINT_BOTH:
-			fhirConnector.printBundleAsXml(fhirConnector.getBundleFromString(bundle));
-			fhirConnector.printBundleAsXmlToFile(number, fhirConnector.getBundleFromString(bundle));
-			break;
-		case PUSH_SERVER:
-			fhirConnector.bundleToServer(fhirConnector.getBundleFromString(bundle));
-			break;
+	private void handleMessage(Channel channel, Envelope envelope, byte[] body) throws IOException {
+		// bundle xml from json message data
+		InputStream is = new ByteArrayInputStream(body);
+		JsonReader jsonReader = Json.createReader(is);
+		JsonObject json = jsonReader.readObject();
+		jsonReader.close();
+
+		String number = json.getString("number");
+		String bundleXml = json.getString("bundle");
+
+		if (bundleXml.equals("END")) {
+			// End this queue as soon as all announced bundles are done
+			channel.basicAck(envelope.getDeliveryTag(), false);
+			expectedBundles = Long.parseLong(number);
+		} else {
+			// process bundle, ack once the output is done (uploads finish in the background)
+			CompletableFuture<Void> done;
+			try {
+				done = performAction(number, bundleXml);
+			} catch (Exception e) {
+				done = new CompletableFuture<>();
+				done.completeExceptionally(e);
+			}
+			done.whenComplete((result, error) -> acknowledge(channel, envelope, number, error));
+			return;
 		}
+		closeIfDone();
+	}
+
+	private void acknowledge(Channel channel, Envelope envelope, String number, Throwable error) {
+		try {
+			// acks may come from upload threads -> one at a time per channel
+			synchronized (channel) {
+				if (error == null) {
+					channel.basicAck(envelope.getDeliveryTag(), false);
+					processedBundles.incrementAndGet();
+				} else {
+					// retry once, drop if it fails again
+					boolean requeue = !envelope.isRedeliver();
+					logger.error("Bundle {} failed ({}), {}", number, error.getMessage(),
+							requeue ? "requeued" : "dropped");
+					channel.basicNack(envelope.getDeliveryTag(), false, requeue);
+					if (!requeue) {
+						processedBundles.incrementAndGet();
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Bundle {} can't be acknowledged: {}", number, e.getMessage());
+		}
+		closeIfDone();
+	}
+
+	private synchronized void closeIfDone() {
+		if (closed || expectedBundles < 0 || processedBundles.get() < expectedBundles) {
+			return;
+		}
+		closed = true;
+		// close connection from a separate thread, not from the consumer thread
+		new Thread(() -> {
+			try {
+				for (Channel channel : channels) {
+					channel.close();
+				}
+				connection.close();
+			} catch (IOException | TimeoutException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+			consumerExecutor.shutdown();
+			processor.close();
+		}).start();
+	}
+
+	private CompletableFuture<Void> performAction(String number, String bundle) {
+		// Perform action for bundle
+		return processor.process(number, fhirConnector.getBundleFromString(bundle));
 	}
 }
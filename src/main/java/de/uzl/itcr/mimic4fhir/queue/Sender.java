@@ -23,20 +23,36 @@ import java.util.concurrent.TimeoutException;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConnectionFactory;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * Publisher class for sending bundle message to RabbitMQ
  * @author Stefanie Ververs
  *
  */
 public class Sender {
+	private final static Logger logger = LoggerFactory.getLogger(Sender.class);
 	private final static String QUEUE_NAME = "BundleQ";
+	private final static long MAX_WAIT_MILLIS = 2000;
 	private Channel channel;
 	private Connection connection;
+	private int maxQueueDepth;
 	
 	/**
 	 * Constructor - creates new channel connection
 	 */
 	public Sender() {
+		this(0);
+	}
+	
+	/**
+	 * Constructor - creates new channel connection
+	 * @param maxQueueDepth number of waiting messages in the queue above which
+	 *                      sending blocks until consumers caught up; 0 for no limit
+	 */
+	public Sender(int maxQueueDepth) {
+		this.maxQueueDepth = maxQueueDepth;
 		ConnectionFactory factory = new ConnectionFactory();
 		factory.setHost("localhost");
 		try {
@@ -55,6 +71,7 @@ public class Sender {
 	 */
 	public void send(String message) {
 		try {
+			waitForConsumers();
 			channel.basicPublish("", QUEUE_NAME, null, message.getBytes());
 			
 		} catch (IOException e) {
@@ -63,6 +80,28 @@ public class Sender {
 		}
 	}
 	
+	/**
+	 * Backpressure: wait while the queue holds more than maxQueueDepth messages
+	 * @throws IOException if the queue can't be inspected
+	 */
+	private void waitForConsumers() throws IOException {
+		if (maxQueueDepth <= 0) {
+			return;
+		}
+		long wait = 50;
+		long depth;
+		while ((depth = channel.messageCount(QUEUE_NAME)) > maxQueueDepth) {
+			logger.debug("{} bundles waiting in queue, sender paused for {} ms", depth, wait);
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			wait = Math.min(wait * 2, MAX_WAIT_MILLIS);
+		}
+	}
+	
 	/**
 	 * Close channel connection
 	 */
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Coding;
+
+/**
+ * Immutable mapping of source values to codings, loaded from a data file in
+ * the resources folder. The codings are prototypes built once;
+ * {@link #get(Object)} returns a copy that can be added to a resource.
+ * <p>
+ * Data files have one mapping per line: {@code key;code;display}. Lines
+ * starting with # are comments.
+ *
+ * @param <K> type of the source values
+ */
+public final class CodeTable<K> {
+
+	private final Map<K, Coding> prototypes;
+
+	private CodeTable(Map<K, Coding> prototypes) {
+		this.prototypes = Collections.unmodifiableMap(prototypes);
+	}
+
+	/**
+	 * Load a table from the resources folder
+	 *
+	 * @param resource path of the data file
+	 * @param system   code system of the codings, null for codings without system
+	 * @return table keyed by the first column
+	 */
+	public static CodeTable<String> load(String resource, String system) {
+		Map<String, Coding> prototypes = new HashMap<>();
+		String internedSystem = system != null ? system.intern() : null;
+		try (InputStream in = CodeTable.class.getClassLoader().getResourceAsStream(resource)) {
+			if (in == null) {
+				throw new IllegalArgumentException("Code table " + resource + " not found");
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] columns = line.split(";", -1);
+				if (columns.length != 3) {
+					throw new IllegalArgumentException("Invalid line in code table " + resource + ": " + line);
+				}
+				Coding coding = new Coding().setCode(columns[1].intern()).setDisplay(columns[2].intern());
+				if (internedSystem != null) {
+					coding.setSystem(internedSystem);
+				}
+				prototypes.put(columns[0], coding);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return new CodeTable<>(prototypes);
+	}
+
+	/**
+	 * Table with other keys, e.g. database ids instead of labels
+	 *
+	 * @param <T>  type of the new keys
+	 * @param keys key of this table per new key; new keys whose key is not
+	 *             mapped are left out
+	 * @return table keyed by the new keys, sharing the prototypes
+	 */
+	public <T> CodeTable<T> rekey(Map<T, K> keys) {
+		Map<T, Coding> rekeyed = new HashMap<>();
+		for (Map.Entry<T, K> entry : keys.entrySet()) {
+			Coding prototype = this.prototypes.get(entry.getValue());
+			if (prototype != null) {
+				rekeyed.put(entry.getKey(), prototype);
+			}
+		}
+		return new CodeTable<>(rekeyed);
+	}
+
+	/**
+	 * Coding of a source value
+	 *
+	 * @param key source value
+	 * @return copy of the coding, null if the value is not mapped
+	 */
+	public Coding get(K key) {
+		Coding prototype = this.prototypes.get(key);
+		return prototype != null ? prototype.copy() : null;
+	}
+
+	/**
+	 * Mapped source values
+	 *
+	 * @return keys of the table
+	 */
+	public Set<K> keys() {
+		return this.prototypes.keySet();
+	}
+
+	/**
+	 * Number of mapped source values
+	 *
+	 * @return size of the table
+	 */
+	public int size() {
+		return this.prototypes.size();
+	}
+}
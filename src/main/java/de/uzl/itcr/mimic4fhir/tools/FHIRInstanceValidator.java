@@ -16,12 +16,15 @@
  ******************************************************************************/
 package de.uzl.itcr.mimic4fhir.tools;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
@@ -32,27 +35,85 @@ import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
 import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StructureDefinition;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.StopWatch;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
 import ca.uhn.fhir.validation.FhirValidator;
-import ca.uhn.fhir.validation.ResultSeverityEnum;
-import ca.uhn.fhir.validation.SingleValidationMessage;
 import ca.uhn.fhir.validation.ValidationResult;
+import de.uzl.itcr.mimic4fhir.work.Config;
 
+/**
+ * Validates resources against the base and KDS profiles. The validation
+ * support chain (profiles, code systems, value sets and the caches of the
+ * validator) is built once per JVM and shared by the pools of validators, one
+ * validator per validation thread of the run.
+ * 
+ * Building the chain is expensive, so {@link #prepare()} should be called
+ * early in a background thread; validators wait until it is ready. The
+ * profiles are parsed in parallel and only kept in memory.
+ */
 public class FHIRInstanceValidator {
 
 	private static final Logger logger = LoggerFactory.getLogger(FHIRInstanceValidator.class);
 
-	private static FHIRInstanceValidator instance;
+	private static final List<String> STRUCTURE_DEFINITIONS = Arrays.asList("kds/snapshots/PatientIn.json",
+			"kds/snapshots/Observation-Vitalstatus.json", "kds/snapshots/KontaktGesundheitseinrichtung.json",
+			"kds/snapshots/Diagnose.json", "kds/snapshots/MII-Reference.StructureDefinition.json",
+			"kds/snapshots/Medication-duplicate-3.json", "kds/snapshots/MedicationAdministration-duplicate-3.json",
+			"kds/snapshots/ObservationLab.json", "kds/snapshots/Prozedur.json",
+			"kds/extensions/ExtensionWirkstofftyp.json");
+	private static final List<String> CODE_SYSTEMS = Arrays.asList("kds/codesystems/Entlassungsgrund.json",
+			"kds/codesystems/EncounterClassAdditionsDE.json");
+	private static final List<String> VALUE_SETS = Arrays.asList("kds/valuesets/EncounterClassDE.json",
+			"kds/valuesets/RestrictedEncounterStatus.json", "kds/valuesets/ValueSet-marital-status.json",
+			"kds/valuesets/ValueSet-ServiceDeliveryLocationRoleType.json");
+
+	private static CachingValidationSupport supportChain;
 	private static final FhirContext ctx = FhirContext.forR4();
-	private static FhirValidator validator = ctx.newValidator();
 
-	private FHIRInstanceValidator() {
+	private final BlockingQueue<FhirValidator> validators;
+
+	/**
+	 * Create a pool of validators, waits until the support chain is built
+	 * 
+	 * @param config Config-Object (number of validators)
+	 */
+	public FHIRInstanceValidator(Config config) {
+		// the caching chain is thread-safe and shared, each validator gets its own module
+		CachingValidationSupport cachingChain = getSupportChain();
+		int poolSize = Math.max(1, config.getValidationThreads());
+		this.validators = new ArrayBlockingQueue<>(poolSize);
+		for (int i = 0; i < poolSize; i++) {
+			FhirValidator validator = ctx.newValidator();
+			validator.registerValidatorModule(new FhirInstanceValidator(cachingChain));
+			this.validators.add(validator);
+		}
+	}
+
+	/**
+	 * Build the validation support chain if it doesn't exist yet. Concurrent
+	 * callers wait until it is built.
+	 */
+	public static void prepare() {
+		getSupportChain();
+	}
+
+	private static synchronized CachingValidationSupport getSupportChain() {
+		if (supportChain == null) {
+			supportChain = createSupportChain();
+		}
+		return supportChain;
+	}
+
+	private static CachingValidationSupport createSupportChain() {
+		StopWatch watch = new StopWatch();
+		watch.start();
 		ValidationSupportChain supportChain = new ValidationSupportChain();
 
 		DefaultProfileValidationSupport defaultSupport = new DefaultProfileValidationSupport(ctx);
@@ -65,90 +126,74 @@ public class FHIRInstanceValidator {
 		supportChain.addValidationSupport(codeService);
 		supportChain.addValidationSupport(validationSupport);
 
-		// Get KDS profiles from project resources folder
-		StructureDefinition kdsPatient = this.getStructureDefinition("kds/snapshots/PatientIn.json");
-		StructureDefinition kdsVitalstatus = this.getStructureDefinition("kds/snapshots/Observation-Vitalstatus.json");
-		StructureDefinition kdsFall = this.getStructureDefinition("kds/snapshots/KontaktGesundheitseinrichtung.json");
-		StructureDefinition kdsDiagnose = this.getStructureDefinition("kds/snapshots/Diagnose.json");
-		StructureDefinition kdsMiiReferenz = this
-				.getStructureDefinition("kds/snapshots/MII-Reference.StructureDefinition.json");
-		StructureDefinition kdsMedikation = this.getStructureDefinition("kds/snapshots/Medication-duplicate-3.json");
-		StructureDefinition kdsMedAdmin = this
-				.getStructureDefinition("kds/snapshots/MedicationAdministration-duplicate-3.json");
-		StructureDefinition kdsObservationLab = this.getStructureDefinition("kds/snapshots/ObservationLab.json");
-		StructureDefinition kdsProzedur = this.getStructureDefinition("kds/snapshots/Prozedur.json");
-		// Get code systems
-		CodeSystem organizationType = new CodeSystem().setUrl("http://hl7.org/fhir/organization-type");
-		CodeSystem entlassungsGrund = this.getCodeSystem("kds/codesystems/Entlassungsgrund.json");
-		CodeSystem encounterDEAdditions = this.getCodeSystem("kds/codesystems/EncounterClassAdditionsDE.json");
-		// Get value sets
-		ValueSet encounterDE = this.getValueSet("kds/valuesets/EncounterClassDE.json");
-		ValueSet restrictedEncounterStatus = this.getValueSet("kds/valuesets/RestrictedEncounterStatus.json");
-		ValueSet maritalStatus = this.getValueSet("kds/valuesets/ValueSet-marital-status.json");
-		ValueSet locationRoleType = this.getValueSet("kds/valuesets/ValueSet-ServiceDeliveryLocationRoleType.json");
-		// Get Extensions
-		StructureDefinition wirkstoffTypExtension = this
-				.getStructureDefinition("kds/extensions/ExtensionWirkstofftyp.json");
-
+		// KDS profiles, code systems, value sets and extensions from project resources folder
 		PrePopulatedValidationSupport prePopulatedSupport = new PrePopulatedValidationSupport(ctx);
-		// Custom structure definitions
-		prePopulatedSupport.addStructureDefinition(kdsPatient);
-		prePopulatedSupport.addStructureDefinition(kdsVitalstatus);
-		prePopulatedSupport.addStructureDefinition(kdsFall);
-		prePopulatedSupport.addStructureDefinition(kdsDiagnose);
-		prePopulatedSupport.addStructureDefinition(kdsMiiReferenz);
-		prePopulatedSupport.addStructureDefinition(kdsMedikation);
-		prePopulatedSupport.addStructureDefinition(kdsMedAdmin);
-		prePopulatedSupport.addStructureDefinition(kdsObservationLab);
-		prePopulatedSupport.addStructureDefinition(kdsProzedur);
-		// Custom code systems
-		prePopulatedSupport.addCodeSystem(organizationType);
-		prePopulatedSupport.addCodeSystem(entlassungsGrund);
-		prePopulatedSupport.addCodeSystem(encounterDEAdditions);
-		// Custom value sets
-		prePopulatedSupport.addValueSet(encounterDE);
-		prePopulatedSupport.addValueSet(restrictedEncounterStatus);
-		prePopulatedSupport.addValueSet(maritalStatus);
-		prePopulatedSupport.addValueSet(locationRoleType);
-		// Custon extensions
-		prePopulatedSupport.addStructureDefinition(wirkstoffTypExtension);
+		for (Resource resource : getConformanceResources()) {
+			if (resource instanceof StructureDefinition) {
+				prePopulatedSupport.addStructureDefinition(resource);
+			} else if (resource instanceof CodeSystem) {
+				prePopulatedSupport.addCodeSystem(resource);
+			} else if (resource instanceof ValueSet) {
+				prePopulatedSupport.addValueSet((ValueSet) resource);
+			}
+		}
+		prePopulatedSupport.addCodeSystem(new CodeSystem().setUrl("http://hl7.org/fhir/organization-type"));
 
 		// Add PrePropulatedValidationSupport
 		supportChain.addValidationSupport(prePopulatedSupport);
 
 		CachingValidationSupport cachingChain = new CachingValidationSupport(supportChain);
-		FhirInstanceValidator validatorModule = new FhirInstanceValidator(cachingChain);
-		validator.registerValidatorModule(validatorModule);
+		watch.stop();
+		logger.info("Validation support ready in {} ms", watch.getTotalTimeMillis());
+		return cachingChain;
 	}
 
-	public static FHIRInstanceValidator getInstance() {
-		if (instance == null)
-			instance = new FHIRInstanceValidator();
-		return instance;
+	/**
+	 * Validate a resource against the base and KDS profiles. Waits if all
+	 * validators of the pool are in use.
+	 * 
+	 * @param resource resource to validate
+	 * @return result with all validation messages
+	 */
+	public ValidationResult validate(IBaseResource resource) {
+		FhirValidator validator;
+		try {
+			validator = validators.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a validator", e);
+		}
+		try {
+			return validator.validateWithResult(resource);
+		} finally {
+			validators.offer(validator);
+		}
 	}
 
-	public void validateAndPrint(IBaseResource resource) {
-		ValidationResult result = validator.validateWithResult(resource);
-		List<SingleValidationMessage> messages = result.getMessages();
-		if (result.isSuccessful()) {
-			System.out.println("Validation was successful!");
-		} else {
-			System.out.println("Validation failed!");
-		}
-		for (SingleValidationMessage message : messages) {
-			if (message.getSeverity() != ResultSeverityEnum.ERROR) {
-				System.out.println("== Validation Message:");
-				System.out.println("---- Location: " + message.getLocationString());
-				System.out.println("---- Severity: " + message.getSeverity());
-				System.out.println("---- Message:  " + message.getMessage());
-			}
+	/**
+	 * Profiles, code systems and value sets of the KDS, parsed in parallel
+	 */
+	private static List<Resource> getConformanceResources() {
+		List<String> paths = new ArrayList<>();
+		paths.addAll(STRUCTURE_DEFINITIONS);
+		paths.addAll(CODE_SYSTEMS);
+		paths.addAll(VALUE_SETS);
+		return paths.parallelStream().map(path -> parse(path, getProfileText(path))).collect(Collectors.toList());
+	}
+
+	private static Resource parse(String path, String text) {
+		if (CODE_SYSTEMS.contains(path)) {
+			return ctx.newJsonParser().parseResource(CodeSystem.class, text);
+		} else if (VALUE_SETS.contains(path)) {
+			return ctx.newJsonParser().parseResource(ValueSet.class, text);
 		}
+		return ctx.newJsonParser().parseResource(StructureDefinition.class, text);
 	}
 
 	// Idea: https://github.com/hapifhir/hapi-fhir/issues/552
-	private String getProfileText(String pathToProfile) {
+	private static String getProfileText(String pathToProfile) {
 		String profileText = null;
-		ClassLoader classLoader = getClass().getClassLoader();
+		ClassLoader classLoader = FHIRInstanceValidator.class.getClassLoader();
 		try (InputStream inputStream = classLoader.getResourceAsStream(pathToProfile)) {
 			profileText = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
 		} catch (IOException e) {
@@ -157,19 +202,4 @@ public class FHIRInstanceValidator {
 		return profileText;
 	}
 
-	private StructureDefinition getStructureDefinition(String pathToProfile) {
-		String profileText = this.getProfileText(pathToProfile);
-		return FHIRInstanceValidator.ctx.newJsonParser().parseResource(StructureDefinition.class, profileText);
-	}
-
-	private org.hl7.fhir.r4.model.ValueSet getValueSet(String pathToProfile) {
-		String profileText = this.getProfileText(pathToProfile);
-		return FHIRInstanceValidator.ctx.newJsonParser().parseResource(org.hl7.fhir.r4.model.ValueSet.class, profileText);
-	}
-
-	private org.hl7.fhir.r4.model.CodeSystem getCodeSystem(String pathToProfile) {
-		String profileText = this.getProfileText(pathToProfile);
-		return FHIRInstanceValidator.ctx.newJsonParser().parseResource(org.hl7.fhir.r4.model.CodeSystem.class, profileText);
-	}
-
 }
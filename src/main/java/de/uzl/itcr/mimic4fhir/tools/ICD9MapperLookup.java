@@ -16,113 +16,85 @@
  ******************************************************************************/
 package de.uzl.itcr.mimic4fhir.tools;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Optional;
 
-import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
 import javax.json.JsonValue;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
-
 import de.uzl.itcr.mimic4fhir.work.Config;
 import de.uzl.itcr.mimic4fhir.work.ConnectDB;
 
 public class ICD9MapperLookup {
 
-	private final ConcurrentHashMap<String, String> snomedLookupTable;
-	private final ConcurrentHashMap<String, String> icd10gmLookupTable;
+	private final TerminologyCache<String> snomedLookupTable;
+	private final TerminologyCache<String> icd10gmLookupTable;
 	private Config config;
-
-	public ICD9MapperLookup(Config config) {
-		this.snomedLookupTable = new ConcurrentHashMap<>();
-		this.icd10gmLookupTable = new ConcurrentHashMap<>();
+	private LookupHttpClient httpClient;
+
+	public ICD9MapperLookup(Config config, LookupHttpClient httpClient) {
+		this.httpClient = httpClient;
+		// caches are keyed by the ConceptMap, a different map starts a new cache file
+		this.snomedLookupTable = new TerminologyCache<>(config.getTerminologyCachePath(), "icd9-snomed",
+				config.getICD9ToSnomed(), TerminologyCodecs.STRING);
+		this.icd10gmLookupTable = new TerminologyCache<>(config.getTerminologyCachePath(), "icd9-icd10gm",
+				config.getICD9toICD10GM(), TerminologyCodecs.STRING);
 		this.config = config;
 	}
 
 	public String getICD10GMCode(String icd9code) {
 		String formalIcd9code = StringManipulator.conformIcdString(icd9code);
-		if (this.icd10gmLookupTable.containsKey(formalIcd9code)) {
-			String cacheCode = icd10gmLookupTable.get(formalIcd9code);
-			// System.out.println("ICD10 hit - " + formalIcd9code + " - " + cacheCode);
-			return cacheCode.equals("NULL") ? null : cacheCode;
-		} else {
-			try {
-				List<String> codes = findICD10GM(config.getICD9toICD10GM()
-						+ "/$translate?system=http://hl7.org/fhir/sid/icd-9-cm&code=" + formalIcd9code
-						+ "&source=http://hl7.org/fhir/sid/icd-9-cm&target=http://fhir.de/CodeSystem/dimdi/icd-10-gm");
+		return this.icd10gmLookupTable.get(formalIcd9code, this::loadICD10GMCode);
+	}
 
-				List<String> eightCodes = new ArrayList<>(), nineCodes = new ArrayList<>(),
-						otherCodes = new ArrayList<>();
-				for (String code : codes) {
-					// this.snomedLookupTable.put(formalIcd9code, code);
-					// TODO this doesn't make sense, does it? why does this put into SNOMED lookup
-					// table?!
+	private Optional<String> loadICD10GMCode(String formalIcd9code) {
+		try {
+			List<String> codes = findICD10GM(config.getICD9toICD10GM()
+					+ "/$translate?system=http://hl7.org/fhir/sid/icd-9-cm&code=" + formalIcd9code
+					+ "&source=http://hl7.org/fhir/sid/icd-9-cm&target=http://fhir.de/CodeSystem/dimdi/icd-10-gm");
+			if (codes.isEmpty()) {
+				// request failed -> don't cache, try again next time
+				return null;
+			}
 
-					// Extract ending of icd code; pattern: LNN.N or LNN.NN
-					String ending = code.length() > 5 ? code.substring(5) : code.substring(4);
-					switch (ending) {
-					case ("8"):
-						eightCodes.add(code);
-						break;
-					case ("9"):
-						nineCodes.add(code);
-						break;
-					default:
-						otherCodes.add(code);
-						break;
-					}
+			List<String> eightCodes = new ArrayList<>(), nineCodes = new ArrayList<>(), otherCodes = new ArrayList<>();
+			for (String code : codes) {
+				// Extract ending of icd code; pattern: LNN.N or LNN.NN
+				String ending = code.length() > 5 ? code.substring(5) : code.substring(4);
+				switch (ending) {
+				case ("8"):
+					eightCodes.add(code);
+					break;
+				case ("9"):
+					nineCodes.add(code);
+					break;
+				default:
+					otherCodes.add(code);
+					break;
 				}
-				// Codes with '9' endings are least specific and thus the safest option followed
-				// by '8' endings
-				if (!nineCodes.isEmpty()) {
-					this.icd10gmLookupTable.put(formalIcd9code, nineCodes.get(0));
-					return nineCodes.get(0);
-				} else if (!eightCodes.isEmpty()) {
-					this.icd10gmLookupTable.put(formalIcd9code, eightCodes.get(0));
-					return eightCodes.get(0);
-				} else {
-					this.icd10gmLookupTable.put(formalIcd9code, otherCodes.get(0));
-					return otherCodes.get(0);
-				}
-			} catch (NoMatchError exc) {
-				this.icd10gmLookupTable.put(formalIcd9code, "NULL");
-				return null;
 			}
+			// Codes with '9' endings are least specific and thus the safest option followed
+			// by '8' endings
+			if (!nineCodes.isEmpty()) {
+				return Optional.of(nineCodes.get(0));
+			} else if (!eightCodes.isEmpty()) {
+				return Optional.of(eightCodes.get(0));
+			} else {
+				return Optional.of(otherCodes.get(0));
+			}
+		} catch (NoMatchError exc) {
+			return Optional.empty();
 		}
 	}
 
 	private List<String> findICD10GM(String url) {
-		CloseableHttpClient httpclient = HttpClients.createDefault();
-		HttpGet httpGet = new HttpGet(url);
 		List<String> icd10gmCodes = new ArrayList<>();
-
-		CloseableHttpResponse response = null;
 		try {
-
-			// GET
-			response = httpclient.execute(httpGet);
-
-			// Response -> JSON Object
-			HttpEntity entity = response.getEntity();
-			String jsonResponse = EntityUtils.toString(entity);
-			InputStream is = new ByteArrayInputStream(jsonResponse.getBytes());
-
-			JsonReader jsonReader = Json.createReader(is);
-			JsonObject respObject = jsonReader.readObject();
-			jsonReader.close();
+			JsonObject respObject = httpClient.getJson(url);
 
 			if (respObject.getJsonArray("parameter").getJsonObject(0).get("valueBoolean").toString().equals("true")) {
 				JsonArray jsonIcd10GmCodes = respObject.getJsonArray("parameter");
@@ -145,59 +117,34 @@ public class ICD9MapperLookup {
 			} else {
 				throw new NoMatchError("No match found for ICD9 code!");
 			}
-
-			EntityUtils.consume(entity);
 		} catch (Exception ex) {
 			ex.printStackTrace();
-		} finally {
-			if (response != null) {
-				try {
-					response.close();
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
-			}
 		}
 		return icd10gmCodes;
 	}
 
 	public String getSNOMEDCode(String icd9code) {
 		String formalIcd9code = StringManipulator.conformIcdString(icd9code);
-		if (this.snomedLookupTable.containsKey(formalIcd9code)) {
-			String cacheCode = snomedLookupTable.get(formalIcd9code);
-			// System.out.println("SNOMED hit - " + formalIcd9code + " - " + cacheCode);
-			return cacheCode.equals("NULL") ? null : cacheCode;
-		} else {
-			try {
-				String code = findSNOMED(config.getICD9ToSnomed()
-						+ "/$translate?system=http://hl7.org/fhir/sid/icd-9-cm&code=" + formalIcd9code
-						+ "&source=http://hl7.org/fhir/sid/icd-9-cm&target=http://snomed.info/sct");
-				this.snomedLookupTable.put(formalIcd9code, code);
-				return code;
-			} catch (NoMatchError exc) {
-				System.out.println("No match found for ICD9 code '" + formalIcd9code + "'!");
-				this.snomedLookupTable.put(formalIcd9code, "NULL");
-				return null;
-			}
+		return this.snomedLookupTable.get(formalIcd9code, this::loadSNOMEDCode);
+	}
+
+	private Optional<String> loadSNOMEDCode(String formalIcd9code) {
+		try {
+			String code = findSNOMED(config.getICD9ToSnomed()
+					+ "/$translate?system=http://hl7.org/fhir/sid/icd-9-cm&code=" + formalIcd9code
+					+ "&source=http://hl7.org/fhir/sid/icd-9-cm&target=http://snomed.info/sct");
+			// null -> request failed, don't cache
+			return code != null ? Optional.of(code) : null;
+		} catch (NoMatchError exc) {
+			System.out.println("No match found for ICD9 code '" + formalIcd9code + "'!");
+			return Optional.empty();
 		}
 	}
 
 	private String findSNOMED(String url) throws NoMatchError {
-		CloseableHttpClient httpclient = HttpClients.createDefault();
-		HttpGet httpGet = new HttpGet(url);
 		String snomedCode = null;
-		CloseableHttpResponse response = null;
 		try {
-			// GET
-			response = httpclient.execute(httpGet);
-			// Response -> JSON Object
-			HttpEntity entity = response.getEntity();
-			String jsonResponse = EntityUtils.toString(entity);
-			InputStream is = new ByteArrayInputStream(jsonResponse.getBytes());
-
-			JsonReader jsonReader = Json.createReader(is);
-			JsonObject respObject = jsonReader.readObject();
-			jsonReader.close();
+			JsonObject respObject = httpClient.getJson(url);
 
 			if (respObject.getJsonArray("parameter").getJsonObject(0).get("valueBoolean").toString().equals("true")) {
 				JsonValue jsonSnomedCode = respObject.getJsonArray("parameter").getJsonObject(1).getJsonArray("part")
@@ -208,18 +155,8 @@ public class ICD9MapperLookup {
 			} else {
 				throw new NoMatchError("No match found for ICD9 code!");
 			}
-
-			EntityUtils.consume(entity);
 		} catch (Exception ex) {
 			ex.printStackTrace();
-		} finally {
-			if (response != null) {
-				try {
-					response.close();
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
-			}
 		}
 		return snomedCode;
 	}
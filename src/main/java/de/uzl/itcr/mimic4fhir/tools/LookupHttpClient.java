@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.tools;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uzl.itcr.mimic4fhir.work.Config;
+
+/**
+ * Shared http client for the terminology lookups. Connections are pooled and
+ * kept alive, so a lookup doesn't need a new TCP/TLS handshake. Failed
+ * requests (io errors, 429 and 5xx) are retried with exponential backoff,
+ * other client errors (4xx) fail at once.
+ */
+public class LookupHttpClient {
+
+	private static final Logger logger = LoggerFactory.getLogger(LookupHttpClient.class);
+	private static final long INITIAL_BACKOFF_MILLIS = 500;
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final ExecutorService asyncExecutor;
+	private final int retries;
+
+	/**
+	 * Create client with the lookup settings of the config
+	 *
+	 * @param config Config-Object
+	 */
+	public LookupHttpClient(Config config) {
+		this(config.getLookupConnections(), config.getLookupTimeout(), config.getLookupRetries());
+	}
+
+	/**
+	 * Create client
+	 *
+	 * @param maxConnections maximum number of connections per host (and
+	 *                       parallel async requests)
+	 * @param timeoutMillis  connect and read timeout
+	 * @param retries        number of retries of a failed request
+	 */
+	public LookupHttpClient(int maxConnections, int timeoutMillis, int retries) {
+		maxConnections = Math.max(1, maxConnections);
+		this.retries = Math.max(0, retries);
+
+		this.connectionManager = new PoolingHttpClientConnectionManager();
+		this.connectionManager.setMaxTotal(maxConnections * 4);
+		this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+		this.connectionManager.setValidateAfterInactivity(10000);
+
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(timeoutMillis)
+				.setConnectionRequestTimeout(timeoutMillis).setSocketTimeout(timeoutMillis).build();
+		this.httpClient = HttpClients.custom().setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+				// retries are handled here, with backoff
+				.disableAutomaticRetries().build();
+
+		AtomicInteger threadNumber = new AtomicInteger();
+		ThreadFactory threadFactory = r -> {
+			Thread thread = new Thread(r, "lookup-http-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		this.asyncExecutor = Executors.newFixedThreadPool(maxConnections, threadFactory);
+	}
+
+	/**
+	 * GET url and parse the response as json object
+	 *
+	 * @param url url to request
+	 * @return response object
+	 * @throws IOException if the request failed after all retries
+	 */
+	public JsonObject getJson(String url) throws IOException {
+		String response = get(url);
+		try (JsonReader jsonReader = Json.createReader(new StringReader(response))) {
+			return jsonReader.readObject();
+		}
+	}
+
+	/**
+	 * GET url and parse the response as json object on the lookup executor
+	 *
+	 * @param url url to request
+	 * @return future of the response object, completes exceptionally if the
+	 *         request failed after all retries
+	 */
+	public CompletableFuture<JsonObject> getJsonAsync(String url) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return getJson(url);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, asyncExecutor);
+	}
+
+	/**
+	 * GET url
+	 *
+	 * @param url url to request
+	 * @return response body
+	 * @throws IOException if the request failed after all retries or with a
+	 *                     client error
+	 */
+	public String get(String url) throws IOException {
+		IOException lastError = null;
+		for (int attempt = 0; attempt <= retries; attempt++) {
+			if (attempt > 0) {
+				backoff(attempt, url, lastError);
+			}
+			HttpGet httpGet = new HttpGet(url);
+			try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+				int status = response.getStatusLine().getStatusCode();
+				// always read the entity, so the connection can be reused
+				String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : "";
+				if (status == SC_TOO_MANY_REQUESTS || status >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+					lastError = new IOException("HTTP " + status + " for " + url);
+					continue;
+				}
+				if (status >= HttpStatus.SC_BAD_REQUEST) {
+					// retry won't help, the error body must not be cached as result
+					throw new HttpResponseException(status, "HTTP " + status + " for " + url);
+				}
+				return body;
+			} catch (HttpResponseException e) {
+				throw e;
+			} catch (IOException e) {
+				lastError = e;
+			}
+		}
+		throw lastError;
+	}
+
+	private void backoff(int attempt, String url, IOException lastError) throws IOException {
+		long wait = INITIAL_BACKOFF_MILLIS << (attempt - 1);
+		logger.debug("Retry {} of {} in {} ms: {}", attempt, url, wait, lastError.getMessage());
+		try {
+			Thread.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw lastError;
+		}
+	}
+
+	/**
+	 * Close all connections
+	 */
+	public void close() {
+		asyncExecutor.shutdownNow();
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
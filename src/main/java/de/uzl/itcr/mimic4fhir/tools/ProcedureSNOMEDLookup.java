@@ -16,35 +16,27 @@
  ******************************************************************************/
 package de.uzl.itcr.mimic4fhir.tools;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
-
 import de.uzl.itcr.mimic4fhir.work.Config;
 
-import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Optional;
 
 public class ProcedureSNOMEDLookup {
 
-	private final ConcurrentHashMap<String, List<String>> icd9SnomedLookupTable;
-	private final ConcurrentHashMap<String, List<String>> icd10SnomedLookupTable;
+	private final TerminologyCache<List<String>> icd9SnomedLookupTable;
+	private final TerminologyCache<List<String>> icd10SnomedLookupTable;
 	private Config config;
-
-	public ProcedureSNOMEDLookup(Config config) {
-		this.icd9SnomedLookupTable = new ConcurrentHashMap<>();
-		this.icd10SnomedLookupTable = new ConcurrentHashMap<>();
+	private LookupHttpClient httpClient;
+
+	public ProcedureSNOMEDLookup(Config config, LookupHttpClient httpClient) {
+		this.httpClient = httpClient;
+		this.icd9SnomedLookupTable = new TerminologyCache<>(config.getTerminologyCachePath(), "icd9proc-snomed",
+				config.getICD9ProcToSnomed(), TerminologyCodecs.STRING_LIST);
+		this.icd10SnomedLookupTable = new TerminologyCache<>(config.getTerminologyCachePath(), "icd10pcs-snomed",
+				config.getICD10PCStoSnomed(), TerminologyCodecs.STRING_LIST);
 		this.config = config;
 	}
 
@@ -53,58 +45,39 @@ public class ProcedureSNOMEDLookup {
 		icd9code = icd9code.trim();
 		// Insert '.' after second character
 		icd9code = icd9code.substring(0, 2) + "." + icd9code.substring(2);
-		if (this.icd9SnomedLookupTable.containsKey(icd9code)) {
-			return this.icd9SnomedLookupTable.get(icd9code);
-		} else {
-
-			String url = config.getICD9ProcToSnomed()
-					+ "/$translate?system=http://hl7.org/fhir/sid/icd-9-cm/procedure&code=" + icd9code
-					+ "&source=http://hl7.org/fhir/sid/icd-9-cm/procedure&target=http://snomed.info/sct";
-			List<String> snomedCodes = this.findSnomedCode(url);
-
-			this.icd9SnomedLookupTable.put(icd9code, snomedCodes);
-			return snomedCodes;
-		}
+		List<String> snomedCodes = this.icd9SnomedLookupTable.get(icd9code,
+				code -> this.loadSnomedCodes(config.getICD9ProcToSnomed()
+						+ "/$translate?system=http://hl7.org/fhir/sid/icd-9-cm/procedure&code=" + code
+						+ "&source=http://hl7.org/fhir/sid/icd-9-cm/procedure&target=http://snomed.info/sct"));
+		return snomedCodes != null ? snomedCodes : new ArrayList<>();
 	}
 
 	public List<String> getSnomedForIcd10(String icd10code) {
 		// Remove unnecessary blank space characters
 		icd10code = icd10code.trim();
-		if (this.icd10SnomedLookupTable.containsKey(icd10code)) {
-			return this.icd10SnomedLookupTable.get(icd10code);
-		} else {
-			
-			String url = config.getICD10PCStoSnomed()
-					+ "/$translate?system=http://hl7.org/fhir/sid/icd-10-pcs&code=" + icd10code
-					+ "&source=http://hl7.org/fhir/sid/icd-10-pcs&target=http://snomed.info/sct";
-			List<String> snomedCodes = this.findSnomedCode(url);
+		List<String> snomedCodes = this.icd10SnomedLookupTable.get(icd10code,
+				code -> this.loadSnomedCodes(config.getICD10PCStoSnomed()
+						+ "/$translate?system=http://hl7.org/fhir/sid/icd-10-pcs&code=" + code
+						+ "&source=http://hl7.org/fhir/sid/icd-10-pcs&target=http://snomed.info/sct"));
+		return snomedCodes != null ? snomedCodes : new ArrayList<>();
+	}
 
-			this.icd10SnomedLookupTable.put(icd10code, snomedCodes);
-			return snomedCodes;
-		}
+	private Optional<List<String>> loadSnomedCodes(String url) {
+		List<String> snomedCodes = this.findSnomedCode(url);
+		// null -> request failed, don't cache
+		return snomedCodes != null ? Optional.of(snomedCodes) : null;
 	}
 
+	/**
+	 * Translate code with ConceptMap
+	 * 
+	 * @param url $translate url
+	 * @return matching snomed codes (empty if no match), null if the request failed
+	 */
 	private List<String> findSnomedCode(String url) {
-		CloseableHttpClient httpclient = HttpClients.createDefault();
-
-		HttpGet httpGet = new HttpGet(url);
-
 		List<String> snomedCodes = new ArrayList<>();
-
-		CloseableHttpResponse response = null;
 		try {
-
-			// GET
-			response = httpclient.execute(httpGet);
-
-			// Response -> JSON Object
-			HttpEntity entity = response.getEntity();
-			String jsonResponse = EntityUtils.toString(entity);
-			InputStream is = new ByteArrayInputStream(jsonResponse.getBytes());
-
-			JsonReader jsonReader = Json.createReader(is);
-			JsonObject respObject = jsonReader.readObject();
-			jsonReader.close();
+			JsonObject respObject = httpClient.getJson(url);
 
 			if (respObject.getJsonArray("parameter").getJsonObject(0).get("valueBoolean").toString().equals("true")) {
 				JsonArray jsonSnomedCodes = respObject.getJsonArray("parameter");
@@ -114,18 +87,9 @@ public class ProcedureSNOMEDLookup {
 					snomedCodes.add(snomedCode);
 				}
 			}
-
-			EntityUtils.consume(entity);
 		} catch (Exception ex) {
 			ex.printStackTrace();
-		} finally {
-			if (response != null) {
-				try {
-					response.close();
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
-			}
+			return null;
 		}
 		return snomedCodes;
 	}
@@ -29,14 +29,19 @@ public class RemoteInformationLookup {
     public ICD9MapperLookup icd9MapperLookup;
     public RxNormLookup rxNormLookup;
     public ProcedureSNOMEDLookup procedureSNOMEDLookup;
+    /**
+     * pooled keep-alive connections shared by all lookups
+     */
+    public LookupHttpClient httpClient;
 
     private RemoteInformationLookup(Config config) {
-        icd9MapperLookup = new ICD9MapperLookup(config);
-        rxNormLookup = new RxNormLookup();
-        procedureSNOMEDLookup = new ProcedureSNOMEDLookup(config);
+        httpClient = new LookupHttpClient(config);
+        icd9MapperLookup = new ICD9MapperLookup(config, httpClient);
+        rxNormLookup = new RxNormLookup(config, httpClient);
+        procedureSNOMEDLookup = new ProcedureSNOMEDLookup(config, httpClient);
     }
 
-    public static RemoteInformationLookup getInstance(Config config) {
+    public static synchronized RemoteInformationLookup getInstance(Config config) {
         if (_instance == null) {
             _instance = new RemoteInformationLookup(config);
         }
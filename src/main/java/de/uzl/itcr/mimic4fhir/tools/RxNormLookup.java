@@ -15,98 +15,51 @@
  /***********************************************************************/
 package de.uzl.itcr.mimic4fhir.tools;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
-import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
 import javax.json.JsonString;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+import de.uzl.itcr.mimic4fhir.work.Config;
 
 /**
  * Provide RxNorm-Lookup for NDC (National Drug Code) and GSN (Generic Sequence Number)
- * Singleton: Use getInstance to get working object
+ * Results are cached, see {@link TerminologyCache}
  *
  * @author Stefanie Ververs
  */
 public class RxNormLookup {
 
-    private final ConcurrentHashMap<String, OptionalCacheResult<RxNormConcept>> rdxLookupNdc;
-    private final ConcurrentHashMap<String, OptionalCacheResult<RxNormConcept>> rdxLookupGsn;
-    private final ConcurrentHashMap<String, OptionalCacheResult<Ingredient>> ingredientLookupNdc;
+    private static final String RXNAV_VERSION = "https://rxnav.nlm.nih.gov/REST";
 
-    public RxNormLookup() {
-        rdxLookupNdc = new ConcurrentHashMap<>();
-        rdxLookupGsn = new ConcurrentHashMap<>();
-        ingredientLookupNdc = new ConcurrentHashMap<>();
-    }
-
-    static class OptionalCacheResult<T> {
-
-        private final boolean hasValue;
-        private List<T> data = null;
-        private CacheResultType resultType;
-
-        public OptionalCacheResult(CacheResultType resultType) {
-            this.hasValue = false;
-            this.resultType = resultType;
-        }
-
-        public OptionalCacheResult(CacheResultType resultType, List<T> data) {
-            this.data = data;
-            this.resultType = resultType;
-            this.hasValue = true;
-        }
-
-        public boolean isHasValue() {
-            return hasValue;
-        }
-
-        public List<T> getData() {
-            return data;
-        }
-
-        public CacheResultType getResultType() {
-            return resultType;
-        }
+    private final TerminologyCache<List<RxNormConcept>> rdxLookupNdc;
+    private final TerminologyCache<List<RxNormConcept>> rdxLookupGsn;
+    private final TerminologyCache<List<Ingredient>> ingredientLookupNdc;
+    private final TerminologyCache<String> nameLookupCui;
+    private final TerminologyCache<List<Ingredient>> ingredientLookupCui;
+    private final LookupHttpClient httpClient;
 
-        @Override
-        public String toString() {
-            if (!hasValue)
-                return "OptionalCacheResult{" +
-                        "hasValue=" + false +
-                        ", resultType=" + resultType +
-                        '}';
-            else if (data != null)
-                return "OptionalCacheResult{" +
-                        "hasValue=" + true +
-                        ", data=" + data.size() +
-                        ", resultType=" + resultType +
-                        '}';
-            return "OptionalCacheResult{" +
-                    "hasValue=" + true +
-                    ", data=MISSING!!!" +
-                    ", resultType=" + resultType +
-                    '}';
-        }
-    }
-
-    enum CacheResultType {
-        Ndc,
-        Gsn,
-        Ingredient
+    /**
+     * Lookup with cache persisted in {@link Config#getTerminologyCachePath()}
+     *
+     * @param config     Config-Object
+     * @param httpClient shared http client
+     */
+    public RxNormLookup(Config config, LookupHttpClient httpClient) {
+        this.httpClient = httpClient;
+        String cachePath = config.getTerminologyCachePath();
+        rdxLookupNdc = new TerminologyCache<>(cachePath, "rxnorm-ndc", RXNAV_VERSION, TerminologyCodecs.RXNORM_CONCEPTS);
+        rdxLookupGsn = new TerminologyCache<>(cachePath, "rxnorm-gsn", RXNAV_VERSION, TerminologyCodecs.RXNORM_CONCEPTS);
+        ingredientLookupNdc = new TerminologyCache<>(cachePath, "rxnorm-ingredients", RXNAV_VERSION, TerminologyCodecs.INGREDIENTS);
+        //a concept is shared by many ndcs -> resolve it only once
+        nameLookupCui = new TerminologyCache<>(cachePath, "rxnorm-cui-names", RXNAV_VERSION, TerminologyCodecs.STRING);
+        ingredientLookupCui = new TerminologyCache<>(cachePath, "rxnorm-cui-ingredients", RXNAV_VERSION, TerminologyCodecs.INGREDIENTS);
     }
 
     /**
@@ -116,24 +69,7 @@ public class RxNormLookup {
      * @return List of RxNorm-Concept
      */
     public List<RxNormConcept> getRxNormForNdc(String ndc) {
-        if (rdxLookupNdc.containsKey(ndc)) {
-            OptionalCacheResult<RxNormConcept> inCache = rdxLookupNdc.get(ndc);
-            return inCache.hasValue ? inCache.getData() : null;
-            //return rdxLookupNdc.get(ndc);
-        } else {
-            List<RxNormConcept> rdxNorm = findRxNormForNdc(ndc);
-            if (rdxNorm.size() > 0) rdxLookupNdc.put(ndc, new OptionalCacheResult<>(CacheResultType.Ndc, rdxNorm));
-            else {
-                rdxLookupNdc.put(ndc, new OptionalCacheResult<RxNormConcept>(CacheResultType.Ndc));
-                return null;
-            }
-            return rdxNorm;
-            /*if (rdxNorm != null) {
-                rdxLookupNdc.put(ndc, rdxNorm);
-                return rdxNorm;
-            }*/
-        }
-        //return null;
+        return lookup(rdxLookupNdc, ndc, () -> findRxNormForNdc(ndc));
     }
 
     /**
@@ -143,48 +79,36 @@ public class RxNormLookup {
      * @return List of RxNorm-Concept
      */
     public List<RxNormConcept> getRxNormForGsn(String gsn) {
-        if (rdxLookupGsn.containsKey(gsn)) {
-            OptionalCacheResult<RxNormConcept> inCache = rdxLookupGsn.get(gsn);
-            return inCache.hasValue ? inCache.getData() : null;
-            //return rdxLookupGsn.get(gsn);
-        } else {
-            List<RxNormConcept> rdxNorm = findRxNormForGsn(gsn);
-            if (rdxNorm.size() > 0) rdxLookupGsn.put(gsn, new OptionalCacheResult<>(CacheResultType.Gsn, rdxNorm));
-            else {
-                rdxLookupGsn.put(gsn, new OptionalCacheResult<RxNormConcept>(CacheResultType.Gsn));
-                return null;
-            }
-            return rdxNorm;
-            /*if (rdxNorm != null) {
-                rdxLookupGsn.put(gsn, rdxNorm);
-                return rdxNorm;
-            }*/
-        }
-        //return null;
+        return lookup(rdxLookupGsn, gsn, () -> findRxNormForGsn(gsn));
     }
 
     public List<Ingredient> getIngredientsForNDC(String ndc) {
-        if (ingredientLookupNdc.containsKey(ndc)) {
-            OptionalCacheResult<Ingredient> inCache = ingredientLookupNdc.get(ndc);
-            //System.out.println("INGR hit: " + ndc + " - " + inCache);
-            return inCache.hasValue ? inCache.getData() : null;
-            //return ingredientLookupNdc.get(ndc);
-        } else {
-            //System.out.println("INGR miss: " + ndc);
-            List<Ingredient> ingredientList = findIngredientsForNDC(ndc);
-            if (ingredientList != null && ingredientList.size() > 0)
-                ingredientLookupNdc.put(ndc, new OptionalCacheResult<>(CacheResultType.Ingredient, ingredientList));
-            else {
-                ingredientLookupNdc.put(ndc, new OptionalCacheResult<Ingredient>(CacheResultType.Ingredient));
+        return lookup(ingredientLookupNdc, ndc, () -> findIngredientsForNDC(ndc));
+    }
+
+    /**
+     * Cached lookup: an empty result is cached as no match, a failed request
+     * (null) is not cached and will be retried. Concurrent requests for the same
+     * key share one remote lookup.
+     *
+     * @param cache  cache for the lookup
+     * @param key    code to look up
+     * @param remote remote lookup
+     * @return result or null if there is no match
+     */
+    private <T> List<T> lookup(TerminologyCache<List<T>> cache, String key, Supplier<List<T>> remote) {
+        Optional<List<T>> result = lookupEntry(cache, key, remote);
+        return result == null ? null : result.orElse(null);
+    }
+
+    private <T> Optional<List<T>> lookupEntry(TerminologyCache<List<T>> cache, String key, Supplier<List<T>> remote) {
+        return cache.getEntry(key, k -> {
+            List<T> result = remote.get();
+            if (result == null) {
                 return null;
             }
-            return ingredientList;
-            /*if (ingredientList != null) {
-                ingredientLookupNdc.put(ndc, ingredientList);
-                return ingredientList;
-            }*/
-        }
-        //return null;
+            return result.isEmpty() ? Optional.empty() : Optional.of(result);
+        });
     }
 
     private List<RxNormConcept> findRxNormForGsn(String gsn) {
@@ -198,145 +122,101 @@ public class RxNormLookup {
     }
 
     private List<Ingredient> findIngredientsForNDC(String ndc) {
-        List<RxNormConcept> rxNormConcepts = this.findRxNormForNdc(ndc);
-        if (rxNormConcepts != null) {
-            List<Ingredient> ingredientsList = new ArrayList<>();
-            for (RxNormConcept rxConcept : rxNormConcepts) {
-                String rxCui = rxConcept.getCui();
-                String ingredientUrl = "https://rxnav.nlm.nih.gov/REST/rxcui/" + rxCui
-                        + "/allrelated.json";
-                List<Ingredient> ingredientsReturn = this.findIngredients(ingredientUrl);
-                if (ingredientsReturn != null) {
-                    ingredientsList.addAll(ingredientsReturn);
-                }
-            }
-            if (ingredientsList != null) {
-                return ingredientsList;
+        //concepts of the ndc are shared with getRxNormForNdc
+        Optional<List<RxNormConcept>> rxNormConcepts = lookupEntry(rdxLookupNdc, ndc, () -> findRxNormForNdc(ndc));
+        if (rxNormConcepts == null) {
+            //request failed
+            return null;
+        }
+        if (!rxNormConcepts.isPresent()) {
+            return new ArrayList<>();
+        }
+
+        //ingredients of all concepts in parallel
+        List<CompletableFuture<Optional<List<Ingredient>>>> futures = new ArrayList<>();
+        for (RxNormConcept rxConcept : rxNormConcepts.get()) {
+            futures.add(ingredientLookupCui.getEntryAsync(rxConcept.getCui(), this::findIngredientsForCui));
+        }
+        List<Ingredient> ingredientsList = new ArrayList<>();
+        for (CompletableFuture<Optional<List<Ingredient>>> future : futures) {
+            Optional<List<Ingredient>> ingredients = future.join();
+            if (ingredients == null) {
+                //request failed
+                return null;
             }
+            ingredients.ifPresent(ingredientsList::addAll);
         }
-        return null;
+        return ingredientsList;
     }
 
     private List<RxNormConcept> findRxNorm(String url) {
         //use of RxNorm REST API https://rxnav.nlm.nih.gov/REST
-
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-
         List<RxNormConcept> rxNormList = new ArrayList<RxNormConcept>();
-
-        HttpGet httpGet = new HttpGet(url);
-
-        CloseableHttpResponse response = null;
+        List<CompletableFuture<Optional<String>>> names = new ArrayList<>();
         try {
-            //GET
-            response = httpclient.execute(httpGet);
-
-            //Response -> JSON Object
-            HttpEntity entity = response.getEntity();
-            String jsonResponse = EntityUtils.toString(entity);
-            InputStream is = new ByteArrayInputStream(jsonResponse.getBytes());
-
-            JsonReader jsonReader = Json.createReader(is);
-            JsonObject respObject = jsonReader.readObject();
-            jsonReader.close();
+            JsonObject respObject = httpClient.getJson(url);
 
             JsonArray ids = respObject.getJsonObject("idGroup").getJsonArray("rxnormId");
             if (ids != null && !ids.isEmpty()) {
                 for (JsonString rxNorm : ids.getValuesAs(JsonString.class)) {
                     RxNormConcept rc = new RxNormConcept();
                     rc.setCui(rxNorm.getString());
-                    //get Name: Separate Call
-                    rc.setName(getNameForCui(rc.getCui()));
+                    //get Name: Separate Call, all names in parallel
+                    names.add(nameLookupCui.getEntryAsync(rc.getCui(), this::findNameForCui));
                     rxNormList.add(rc);
                 }
             }
-
-            EntityUtils.consume(entity);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            //request failed -> no result, will be retried
+            return null;
         } catch (Exception ex) {
             ex.printStackTrace();
-        } finally {
-            if (response != null) {
-                try {
-                    response.close();
-                } catch (Exception ex) {
-                }
+        }
+        for (int i = 0; i < names.size(); i++) {
+            Optional<String> name = names.get(i).join();
+            if (name == null) {
+                //request failed
+                return null;
             }
+            rxNormList.get(i).setName(name.orElse(null));
         }
         return rxNormList;
-
     }
 
-    private List<Ingredient> findIngredients(String url) {
+    private CompletableFuture<Optional<List<Ingredient>>> findIngredientsForCui(String rxCui) {
         //use of RxNorm REST API https://rxnav.nlm.nih.gov/REST
-
-        //First: Get ingredient rxCUIs for a rxNorm concept
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-
-        List<Ingredient> ingredients = new ArrayList<Ingredient>();
-
-        HttpGet httpGet = new HttpGet(url);
-
-        CloseableHttpResponse response = null;
-
-        try {
-            //GET: ingredient names and rxcui's for later HTTP requests
-            response = httpclient.execute(httpGet);
-
-            //Response -> JSON Object
-            HttpEntity entity = response.getEntity();
-            String jsonResponse = EntityUtils.toString(entity);
-            InputStream is = new ByteArrayInputStream(jsonResponse.getBytes());
-
-            JsonReader jsonReader = Json.createReader(is);
-            JsonObject respObject = jsonReader.readObject();
-            jsonReader.close();
-
-            JsonArray relatedJson = respObject.getJsonObject("allRelatedGroup").getJsonArray("conceptGroup");
-            if (relatedJson != null && !relatedJson.isEmpty()) {
-                //Multiple ingredients might be present; found in the IN TTY section of the JSON response
-                JsonArray mIngredientsArray = relatedJson.getJsonObject(4).getJsonArray("conceptProperties");
-                if (mIngredientsArray != null && !mIngredientsArray.isEmpty()) {
-                    for (JsonObject jsonIngredient : mIngredientsArray.getValuesAs(JsonObject.class)) {
-                        Ingredient ingredient = new Ingredient(jsonIngredient.getString("name"), jsonIngredient.getString("rxcui"));
-                        ingredients.add(ingredient);
+        String url = "https://rxnav.nlm.nih.gov/REST/rxcui/" + rxCui + "/allrelated.json";
+        //GET: ingredient names and rxcui's for later HTTP requests
+        return httpClient.getJsonAsync(url).thenCompose(respObject -> {
+            List<Ingredient> ingredients = new ArrayList<Ingredient>();
+            try {
+                JsonArray relatedJson = respObject.getJsonObject("allRelatedGroup").getJsonArray("conceptGroup");
+                if (relatedJson != null && !relatedJson.isEmpty()) {
+                    //Multiple ingredients might be present; found in the IN TTY section of the JSON response
+                    JsonArray mIngredientsArray = relatedJson.getJsonObject(4).getJsonArray("conceptProperties");
+                    if (mIngredientsArray != null && !mIngredientsArray.isEmpty()) {
+                        for (JsonObject jsonIngredient : mIngredientsArray.getValuesAs(JsonObject.class)) {
+                            Ingredient ingredient = new Ingredient(jsonIngredient.getString("name"), jsonIngredient.getString("rxcui"));
+                            ingredients.add(ingredient);
+                        }
                     }
                 }
+            } catch (Exception ex) {
+                ex.printStackTrace();
             }
 
-            //GET: ATC and SNOMED codes for each ingredient
+            //GET: ATC, SNOMED and UNII codes for each ingredient, all in parallel
+            List<CompletableFuture<Void>> codes = new ArrayList<>();
             for (Ingredient ingredient : ingredients) {
-                String atcUrl = "https://rxnav.nlm.nih.gov/REST/rxcui/" + ingredient.getRxCui() + "/property.json?propName=ATC";
-                List<String> atcCodes = this.getCodes(atcUrl);
-                if (atcCodes != null && !atcCodes.isEmpty()) {
-                    ingredient.addAtcCodes(atcCodes);
-                }
-
-                String snomedUrl = "https://rxnav.nlm.nih.gov/REST/rxcui/" + ingredient.getRxCui() + "/property.json?propName=SNOMEDCT";
-                List<String> snomedCodes = this.getCodes(snomedUrl);
-                if (snomedCodes != null && !snomedCodes.isEmpty()) {
-                    ingredient.addSnomedCodes(snomedCodes);
-                }
-
-                String uniiUrl = "https://rxnav.nlm.nih.gov/REST/rxcui/" + ingredient.getRxCui() + "/property.json?propName=UNII_CODE";
-                List<String> uniiCodes = this.getCodes(uniiUrl);
-                if (uniiCodes != null && !uniiCodes.isEmpty()) {
-                    ingredient.addUniiCodes(uniiCodes);
-                }
-            }
-
-            EntityUtils.consume(entity);
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        } finally {
-            if (response != null) {
-                try {
-                    response.close();
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
+                String propertyUrl = "https://rxnav.nlm.nih.gov/REST/rxcui/" + ingredient.getRxCui() + "/property.json?propName=";
+                codes.add(getCodes(propertyUrl + "ATC").thenAccept(ingredient::addAtcCodes));
+                codes.add(getCodes(propertyUrl + "SNOMEDCT").thenAccept(ingredient::addSnomedCodes));
+                codes.add(getCodes(propertyUrl + "UNII_CODE").thenAccept(ingredient::addUniiCodes));
             }
-        }
-        return ingredients;
+            return CompletableFuture.allOf(codes.toArray(new CompletableFuture[0]))
+                    .thenApply(done -> Optional.of(ingredients));
+        });
     }
 
     /**
@@ -345,89 +225,40 @@ public class RxNormLookup {
      * It is used primarily for retrieving ATC and SNOMEDCT codes for a given ingredient
      *
      * @param codesUrl URL of the RxNorm API for retrieving the codes
-     * @return list containing the retrieved codes as Strings
+     * @return future of the list containing the retrieved codes as Strings, completes exceptionally if the request failed
      */
-    private List<String> getCodes(String codesUrl) {
+    private CompletableFuture<List<String>> getCodes(String codesUrl) {
         //use of RxNorm REST API https://rxnav.nlm.nih.gov/REST
-
-        //Get codes for a given rxCUI based on the URL
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-
-        List<String> codeList = new ArrayList<String>();
-
-        HttpGet httpGet = new HttpGet(codesUrl);
-
-        CloseableHttpResponse response = null;
-
-        try {
-            //GET: codes from the rxNorm API
-            response = httpclient.execute(httpGet);
-
-            HttpEntity entity = response.getEntity();
-            String jsonResponse = EntityUtils.toString(entity);
-            InputStream is = new ByteArrayInputStream(jsonResponse.getBytes());
-
-            JsonReader jsonReader = Json.createReader(is);
-            JsonObject respObject = jsonReader.readObject();
-            jsonReader.close();
-
-            //Get JSON array containing all the retrieved codes from the JSON response
-            if (!respObject.isNull("propConceptGroup")) {
-                JsonArray jsonCodeList = respObject.getJsonObject("propConceptGroup").getJsonArray("propConcept");
-                if (jsonCodeList != null && !jsonCodeList.isEmpty()) {
-                    for (JsonObject codeObject : jsonCodeList.getValuesAs(JsonObject.class)) {
-                        codeList.add(codeObject.getString("propValue"));
+        //GET: codes from the rxNorm API
+        return httpClient.getJsonAsync(codesUrl).thenApply(respObject -> {
+            List<String> codeList = new ArrayList<String>();
+            try {
+                //Get JSON array containing all the retrieved codes from the JSON response
+                if (!respObject.isNull("propConceptGroup")) {
+                    JsonArray jsonCodeList = respObject.getJsonObject("propConceptGroup").getJsonArray("propConcept");
+                    if (jsonCodeList != null && !jsonCodeList.isEmpty()) {
+                        for (JsonObject codeObject : jsonCodeList.getValuesAs(JsonObject.class)) {
+                            codeList.add(codeObject.getString("propValue"));
+                        }
                     }
                 }
+            } catch (Exception ex) {
+                ex.printStackTrace();
             }
-            EntityUtils.consume(entity);
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        } finally {
-            if (response != null) {
-                try {
-                    response.close();
-                } catch (Exception ex) {
-                }
-            }
-        }
-        return codeList;
+            return codeList;
+        });
     }
 
-    private String getNameForCui(String cui) {
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-
-        String name = null;
+    private CompletableFuture<Optional<String>> findNameForCui(String cui) {
         String url = "https://rxnav.nlm.nih.gov/REST/rxcui/" + cui + "/property.json?propName=RxNorm%20Name";
-        HttpGet httpGet = new HttpGet(url);
-
-        CloseableHttpResponse response = null;
-        try {
-            //GET
-            response = httpclient.execute(httpGet);
-
-            //Response -> JSON Object
-            HttpEntity entity = response.getEntity();
-            String jsonResponse = EntityUtils.toString(entity);
-            InputStream is = new ByteArrayInputStream(jsonResponse.getBytes());
-
-            JsonReader jsonReader = Json.createReader(is);
-            JsonObject respObject = jsonReader.readObject();
-            jsonReader.close();
-
-            name = respObject.getJsonObject("propConceptGroup").getJsonArray("propConcept").get(0).asJsonObject().getString("propValue");
-
-            EntityUtils.consume(entity);
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        } finally {
-            if (response != null) {
-                try {
-                    response.close();
-                } catch (Exception ex) {
-                }
+        return httpClient.getJsonAsync(url).thenApply(respObject -> {
+            String name = null;
+            try {
+                name = respObject.getJsonObject("propConceptGroup").getJsonArray("propConcept").get(0).asJsonObject().getString("propValue");
+            } catch (Exception ex) {
+                ex.printStackTrace();
             }
-        }
-        return name;
+            return Optional.ofNullable(name);
+        });
     }
 }
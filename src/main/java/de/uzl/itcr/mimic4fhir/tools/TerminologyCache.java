@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Cache for remote terminology lookups, optionally persisted in an append-only
+ * log file. The file is named after the namespace and a hash of the version
+ * (e.g. the ConceptMap url), so a changed ConceptMap starts with an empty
+ * cache. Existing entries are loaded when the cache is created. Negative
+ * results (no match) are cached as well.
+ * <p>
+ * Loading is single-flight: if several threads request the same uncached key,
+ * only the first one calls the loader, the others wait for its result.
+ *
+ * @param <V> type of the cached values
+ */
+public class TerminologyCache<V> {
+
+	private static final Logger logger = LoggerFactory.getLogger(TerminologyCache.class);
+	private static final String NEGATIVE = "null";
+
+	/**
+	 * Converts cached values to a single line string and back
+	 *
+	 * @param <V> type of the cached values
+	 */
+	public interface Codec<V> {
+		String encode(V value);
+
+		V decode(String value);
+	}
+
+	private final AsyncCache<String, Optional<V>> entries = Caffeine.newBuilder().buildAsync();
+	private final Codec<V> codec;
+	private BufferedWriter log;
+
+	/**
+	 * Create cache and load existing entries
+	 *
+	 * @param directory directory of the cache files, null for an in-memory cache
+	 * @param namespace name of the lookup (part of the file name)
+	 * @param version   version of the lookup, e.g. ConceptMap url
+	 * @param codec     codec for the values
+	 */
+	public TerminologyCache(String directory, String namespace, String version, Codec<V> codec) {
+		this.codec = codec;
+		if (directory == null) {
+			return;
+		}
+		Path file = Paths.get(directory, namespace + "-" + DigestUtils.sha1Hex(String.valueOf(version)).substring(0, 12)
+				+ ".tsv");
+		try {
+			Files.createDirectories(file.getParent());
+			if (Files.exists(file)) {
+				load(file);
+			}
+			boolean isNew = !Files.exists(file);
+			log = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+			if (isNew) {
+				log.write("# " + namespace + " " + version);
+				log.newLine();
+				log.flush();
+			}
+			logger.info("Terminology cache {}: {} entries loaded from {}", namespace, size(), file);
+		} catch (IOException e) {
+			logger.error("Terminology cache {} can't be persisted: {}", namespace, e.getMessage());
+			log = null;
+		}
+	}
+
+	private void load(Path file) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (line.startsWith("#") || tab < 0) {
+					continue;
+				}
+				String value = line.substring(tab + 1);
+				try {
+					entries.put(line.substring(0, tab), CompletableFuture.completedFuture(
+							NEGATIVE.equals(value) ? Optional.empty() : Optional.ofNullable(codec.decode(value))));
+				} catch (RuntimeException e) {
+					// e.g. last line incomplete after a crash
+					logger.warn("Skipping invalid cache line in {}", file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cached value or the result of the loader. The loader is called by the
+	 * first thread requesting an uncached key only, concurrent callers wait for
+	 * its result.
+	 *
+	 * @param key    lookup key, e.g. source code
+	 * @param loader remote lookup: value, empty if there is no match (cached as
+	 *               negative) or null if the lookup failed (not cached)
+	 * @return value; null if there is no match or the lookup failed
+	 */
+	public V get(String key, Function<String, Optional<V>> loader) {
+		Optional<V> value = getEntry(key, loader);
+		return value == null ? null : value.orElse(null);
+	}
+
+	/**
+	 * Like {@link #get(String, Function)}, but distinguishes no match and failed
+	 * lookups
+	 *
+	 * @param key    lookup key
+	 * @param loader remote lookup, see {@link #get(String, Function)}
+	 * @return value, empty if there is no match, null if the lookup failed
+	 */
+	public Optional<V> getEntry(String key, Function<String, Optional<V>> loader) {
+		CompletableFuture<Optional<V>> created = new CompletableFuture<>();
+		CompletableFuture<Optional<V>> future = entries.get(key, (k, executor) -> created);
+		if (future == created) {
+			// this thread loads, outside of the cache's locks
+			try {
+				complete(key, created, loader.apply(key));
+			} catch (RuntimeException | Error e) {
+				created.complete(null);
+				throw e;
+			}
+		}
+		return future.join();
+	}
+
+	/**
+	 * Asynchronous variant of {@link #getEntry(String, Function)} for loaders
+	 * that don't block
+	 *
+	 * @param key    lookup key
+	 * @param loader asynchronous remote lookup, completes with the value, empty
+	 *               if there is no match or null/exceptionally if the lookup
+	 *               failed
+	 * @return future of the value, empty if there is no match, null if the lookup
+	 *         failed
+	 */
+	public CompletableFuture<Optional<V>> getEntryAsync(String key,
+			Function<String, CompletableFuture<Optional<V>>> loader) {
+		CompletableFuture<Optional<V>> created = new CompletableFuture<>();
+		CompletableFuture<Optional<V>> future = entries.get(key, (k, executor) -> created);
+		if (future == created) {
+			try {
+				loader.apply(key).whenComplete((value, error) -> complete(key, created, error == null ? value : null));
+			} catch (RuntimeException e) {
+				created.complete(null);
+			}
+		}
+		return future;
+	}
+
+	private void complete(String key, CompletableFuture<Optional<V>> future, Optional<V> value) {
+		if (value != null) {
+			append(key, value.isPresent() ? codec.encode(value.get()) : NEGATIVE);
+		}
+		// a null value removes the entry again
+		future.complete(value);
+	}
+
+	private synchronized void append(String key, String value) {
+		if (log == null) {
+			return;
+		}
+		try {
+			log.write(key + "\t" + value);
+			log.newLine();
+			log.flush();
+		} catch (IOException e) {
+			logger.error("Can't write terminology cache entry: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Number of cached entries
+	 *
+	 * @return number of entries
+	 */
+	public int size() {
+		return (int) entries.synchronous().estimatedSize();
+	}
+
+	/**
+	 * Close the cache file
+	 */
+	public synchronized void close() {
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			log = null;
+		}
+	}
+}
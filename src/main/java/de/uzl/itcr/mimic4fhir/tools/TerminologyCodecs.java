@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.tools;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+
+/**
+ * Json codecs for the values of the {@link TerminologyCache}s
+ */
+public class TerminologyCodecs {
+
+	private TerminologyCodecs() {
+	}
+
+	public static final TerminologyCache.Codec<String> STRING = new TerminologyCache.Codec<String>() {
+		@Override
+		public String encode(String value) {
+			return Json.createArrayBuilder().add(value).build().toString();
+		}
+
+		@Override
+		public String decode(String value) {
+			return readArray(value).getString(0);
+		}
+	};
+
+	public static final TerminologyCache.Codec<List<String>> STRING_LIST = new TerminologyCache.Codec<List<String>>() {
+		@Override
+		public String encode(List<String> value) {
+			return toJson(value).build().toString();
+		}
+
+		@Override
+		public List<String> decode(String value) {
+			return toList(readArray(value));
+		}
+	};
+
+	public static final TerminologyCache.Codec<List<RxNormConcept>> RXNORM_CONCEPTS = new TerminologyCache.Codec<List<RxNormConcept>>() {
+		@Override
+		public String encode(List<RxNormConcept> value) {
+			JsonArrayBuilder array = Json.createArrayBuilder();
+			for (RxNormConcept concept : value) {
+				array.add(Json.createObjectBuilder().add("cui", concept.getCui()).add("name",
+						concept.getName() != null ? concept.getName() : ""));
+			}
+			return array.build().toString();
+		}
+
+		@Override
+		public List<RxNormConcept> decode(String value) {
+			List<RxNormConcept> concepts = new ArrayList<>();
+			for (JsonObject object : readArray(value).getValuesAs(JsonObject.class)) {
+				RxNormConcept concept = new RxNormConcept();
+				concept.setCui(object.getString("cui"));
+				String name = object.getString("name");
+				concept.setName(name.isEmpty() ? null : name);
+				concepts.add(concept);
+			}
+			return concepts;
+		}
+	};
+
+	public static final TerminologyCache.Codec<List<Ingredient>> INGREDIENTS = new TerminologyCache.Codec<List<Ingredient>>() {
+		@Override
+		public String encode(List<Ingredient> value) {
+			JsonArrayBuilder array = Json.createArrayBuilder();
+			for (Ingredient ingredient : value) {
+				array.add(Json.createObjectBuilder().add("description", ingredient.getDescription())
+						.add("rxcui", ingredient.getRxCui()).add("atc", toJson(ingredient.getAtcCodes()))
+						.add("snomed", toJson(ingredient.getSnomedCodes()))
+						.add("unii", toJson(ingredient.getUniiCodes())));
+			}
+			return array.build().toString();
+		}
+
+		@Override
+		public List<Ingredient> decode(String value) {
+			List<Ingredient> ingredients = new ArrayList<>();
+			for (JsonObject object : readArray(value).getValuesAs(JsonObject.class)) {
+				Ingredient ingredient = new Ingredient(object.getString("description"), object.getString("rxcui"));
+				ingredient.addAtcCodes(toList(object.getJsonArray("atc")));
+				ingredient.addSnomedCodes(toList(object.getJsonArray("snomed")));
+				ingredient.addUniiCodes(toList(object.getJsonArray("unii")));
+				ingredients.add(ingredient);
+			}
+			return ingredients;
+		}
+	};
+
+	private static JsonArray readArray(String value) {
+		try (JsonReader reader = Json.createReader(new StringReader(value))) {
+			return reader.readArray();
+		}
+	}
+
+	private static JsonArrayBuilder toJson(List<String> values) {
+		JsonArrayBuilder array = Json.createArrayBuilder();
+		for (String value : values) {
+			array.add(value);
+		}
+		return array;
+	}
+
+	private static List<String> toList(JsonArray array) {
+		List<String> values = new ArrayList<>();
+		for (JsonString value : array.getValuesAs(JsonString.class)) {
+			values.add(value.getString());
+		}
+		return values;
+	}
+}
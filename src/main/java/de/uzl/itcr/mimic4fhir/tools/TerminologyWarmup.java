@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StopWatch;
+
+import de.uzl.itcr.mimic4fhir.model.manager.ModelVersion;
+import de.uzl.itcr.mimic4fhir.work.Config;
+import de.uzl.itcr.mimic4fhir.work.ConnectDB;
+
+/**
+ * Resolves all distinct codes of the database with the
+ * {@link RemoteInformationLookup} before the conversion starts. Afterwards the
+ * conversion threads are served from the lookup caches and don't wait for the
+ * terminology servers. Combined with a persistent cache
+ * ({@link Config#setTerminologyCachePath(String)}) the warm-up only has to
+ * query the servers once.
+ */
+public class TerminologyWarmup {
+
+	private static final Logger logger = LoggerFactory.getLogger(TerminologyWarmup.class);
+
+	private final Config config;
+	private final RemoteInformationLookup lookup;
+	private final AtomicInteger done = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	public TerminologyWarmup(Config config) {
+		this.config = config;
+		this.lookup = RemoteInformationLookup.getInstance(config);
+	}
+
+	/**
+	 * Query all distinct codes and resolve them in parallel, returns when all
+	 * lookups are done
+	 *
+	 * @param connectDB connection used to query the codes
+	 */
+	public void run(ConnectDB connectDB) {
+		StopWatch watch = new StopWatch();
+		watch.start();
+
+		List<Runnable> tasks = new ArrayList<>();
+		if (config.getSpecification() == ModelVersion.KDS) {
+			// diagnoses and procedures are only mapped for the KDS
+			for (String code : nonNull(connectDB.getDistinctDiagnosisCodes(ConnectDB.IcdVersion.ICD9))) {
+				String icdCode = code.replaceAll("\\s", "");
+				tasks.add(() -> lookup.icd9MapperLookup.getSNOMEDCode(icdCode));
+				tasks.add(() -> lookup.icd9MapperLookup.getICD10GMCode(icdCode));
+			}
+			for (String code : nonNull(connectDB.getDistinctProcedureCodes(ConnectDB.IcdVersion.ICD9))) {
+				tasks.add(() -> lookup.procedureSNOMEDLookup.getSnomedForIcd9(code));
+			}
+			for (String code : nonNull(connectDB.getDistinctProcedureCodes(ConnectDB.IcdVersion.ICD10))) {
+				tasks.add(() -> lookup.procedureSNOMEDLookup.getSnomedForIcd10(code));
+			}
+			for (String ndc : nonNull(connectDB.getDistinctNdcs())) {
+				tasks.add(() -> lookup.rxNormLookup.getIngredientsForNDC(ndc));
+			}
+		} else {
+			for (String ndc : nonNull(connectDB.getDistinctNdcs())) {
+				tasks.add(() -> lookup.rxNormLookup.getRxNormForNdc(ndc));
+			}
+			for (String gsn : nonNull(connectDB.getDistinctGsnsWithoutNdc())) {
+				for (String gsnSingle : gsn.split(" ")) {
+					if (!gsnSingle.trim().isEmpty()) {
+						tasks.add(() -> lookup.rxNormLookup.getRxNormForGsn(gsnSingle.trim()));
+					}
+				}
+			}
+		}
+		logger.info("Terminology warm-up: {} lookups with {} threads", tasks.size(), config.getWarmupThreads());
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, config.getWarmupThreads()));
+		for (Runnable task : tasks) {
+			executor.submit(() -> resolve(task, tasks.size()));
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		watch.stop();
+		logger.info("Terminology warm-up complete: {} lookups ({} failed) in {} ms", done.get(), failed.get(),
+				watch.getTotalTimeMillis());
+	}
+
+	private void resolve(Runnable task, int total) {
+		try {
+			task.run();
+		} catch (Throwable t) {
+			// single code, will be looked up again during conversion
+			failed.incrementAndGet();
+			logger.warn("Terminology lookup failed: {}", t.toString());
+		}
+		int count = done.incrementAndGet();
+		if (count % 1000 == 0) {
+			logger.info("Terminology warm-up: {}/{}", count, total);
+		}
+	}
+
+	private static List<String> nonNull(List<String> codes) {
+		return codes != null ? codes : new ArrayList<>();
+	}
+}
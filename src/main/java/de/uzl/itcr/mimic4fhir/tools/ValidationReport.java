@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+
+/**
+ * Aggregates validation messages of a run. Messages are grouped by resource
+ * type, profile, location and message template (message with quoted values
+ * and numbers replaced), each group counts its occurrences and keeps a few
+ * ids of affected resources. The report is written as CSV, or as JSON if the
+ * file name ends with .json.
+ */
+public class ValidationReport {
+
+	private static final Logger logger = LoggerFactory.getLogger(ValidationReport.class);
+	private static final int SAMPLE_IDS = 5;
+
+	private static final Pattern INDEX = Pattern.compile("\\[\\d+\\]");
+	private static final Pattern QUOTED = Pattern.compile("'[^']*'|\"[^\"]*\"");
+	private static final Pattern NUMBER = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+
+	/**
+	 * Messages with the same type, profile, severity, location and template
+	 */
+	private static class Issue {
+		final String resourceType;
+		final String profile;
+		final String severity;
+		final String location;
+		final String message;
+		final AtomicLong count = new AtomicLong();
+		final List<String> sampleIds = Collections.synchronizedList(new ArrayList<>());
+
+		Issue(String resourceType, String profile, String severity, String location, String message) {
+			this.resourceType = resourceType;
+			this.profile = profile;
+			this.severity = severity;
+			this.location = location;
+			this.message = message;
+		}
+	}
+
+	private final Map<String, Issue> issues = new ConcurrentHashMap<>();
+
+	/**
+	 * Add the messages of a validated resource
+	 * 
+	 * @param resource validated resource
+	 * @param result   result of the validation
+	 */
+	public void add(Resource resource, ValidationResult result) {
+		String type = resource.fhirType();
+		String profile = resource.getMeta().hasProfile() ? resource.getMeta().getProfile().get(0).getValue() : "";
+		String id = resource.getIdElement().getIdPart();
+		for (SingleValidationMessage message : result.getMessages()) {
+			String severity = String.valueOf(message.getSeverity());
+			String location = message.getLocationString() != null
+					? INDEX.matcher(message.getLocationString()).replaceAll("")
+					: "";
+			String template = NUMBER.matcher(QUOTED.matcher(String.valueOf(message.getMessage())).replaceAll("'?'"))
+					.replaceAll("#");
+			String key = String.join("\u0000", type, profile, severity, location, template);
+			Issue issue = issues.computeIfAbsent(key, k -> new Issue(type, profile, severity, location, template));
+			issue.count.incrementAndGet();
+			if (id != null && issue.sampleIds.size() < SAMPLE_IDS) {
+				issue.sampleIds.add(id);
+			}
+		}
+	}
+
+	/**
+	 * Write the report, most frequent issues first
+	 * 
+	 * @param file CSV file, JSON if the name ends with .json
+	 */
+	public void write(String file) {
+		List<Issue> sorted = new ArrayList<>(issues.values());
+		sorted.sort(Comparator.comparingLong((Issue issue) -> issue.count.get()).reversed());
+		try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+			if (file.endsWith(".json")) {
+				writeJson(writer, sorted);
+			} else {
+				writeCsv(writer, sorted);
+			}
+			logger.info("Wrote {} validation issues to {}", sorted.size(), file);
+		} catch (IOException e) {
+			logger.error("Validation report {} can't be written: {}", file, e.getMessage());
+		}
+	}
+
+	private void writeCsv(BufferedWriter writer, List<Issue> sorted) throws IOException {
+		writer.write("resource_type,profile,severity,location,message,count,sample_ids");
+		writer.newLine();
+		for (Issue issue : sorted) {
+			writer.write(String.join(",", csv(issue.resourceType), csv(issue.profile), csv(issue.severity),
+					csv(issue.location), csv(issue.message), String.valueOf(issue.count.get()),
+					csv(String.join(" ", issue.sampleIds))));
+			writer.newLine();
+		}
+	}
+
+	private void writeJson(BufferedWriter writer, List<Issue> sorted) {
+		JsonGenerator json = Json.createGenerator(writer);
+		json.writeStartArray();
+		for (Issue issue : sorted) {
+			json.writeStartObject().write("resourceType", issue.resourceType).write("profile", issue.profile)
+					.write("severity", issue.severity).write("location", issue.location)
+					.write("message", issue.message).write("count", issue.count.get()).writeStartArray("sampleIds");
+			synchronized (issue.sampleIds) {
+				issue.sampleIds.forEach(json::write);
+			}
+			json.writeEnd().writeEnd();
+		}
+		json.writeEnd();
+		json.flush();
+	}
+
+	private static String csv(String value) {
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
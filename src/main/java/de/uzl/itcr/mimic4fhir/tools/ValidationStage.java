@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.tools;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import de.uzl.itcr.mimic4fhir.work.Config;
+
+/**
+ * Validates generated resources in the background. The conversion threads
+ * only decide whether a resource is sampled and hand a copy to the validation
+ * threads, so the conversion does not wait for the instance validator.
+ * 
+ * Resources with the same type, profile and content (apart from id and
+ * references) are validated once: repeated resources, e.g. the basic bundle
+ * of a split admission, and identical events only count as duplicates. The
+ * results are counted per resource type and logged at the end of the run, the
+ * messages are aggregated in a {@link ValidationReport}.
+ */
+public class ValidationStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(ValidationStage.class);
+
+	// resources queued per validation thread before the conversion validates itself
+	private static final int QUEUE_PER_THREAD = 64;
+	private static final long MAX_HASHES = 1_000_000;
+	// differ for every patient -> not part of the content of a resource
+	private static final Set<String> REFERENCE_ELEMENTS = new HashSet<>(Arrays.asList("*.subject", "*.encounter",
+			"*.partOf", "*.context", "*.medication", "*.managingOrganization", "*.serviceProvider", "*.location",
+			"*.performer"));
+
+	private static ValidationStage _instance = null;
+
+	private final Config config;
+	private final ThreadPoolExecutor executor;
+	private final Cache<String, Boolean> validatedHashes;
+	private final ThreadLocal<IParser> parser;
+	private final Map<String, TypeCounts> counts = new ConcurrentHashMap<>();
+	private final ValidationReport report = new ValidationReport();
+	// validators of this run, created by the first validation
+	private FHIRInstanceValidator validator;
+
+	/**
+	 * Counts of one resource type
+	 */
+	private static class TypeCounts {
+		final AtomicLong submitted = new AtomicLong();
+		final AtomicLong validated = new AtomicLong();
+		final AtomicLong duplicates = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong warnings = new AtomicLong();
+	}
+
+	private ValidationStage(Config config) {
+		this.config = config;
+		int threads = Math.max(1, config.getValidationThreads());
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
+		this.validatedHashes = Caffeine.newBuilder().maximumSize(MAX_HASHES).build();
+		FhirContext ctx = FhirContext.forR4();
+		this.parser = ThreadLocal.withInitial(() -> {
+			IParser jsonParser = ctx.newJsonParser().setOmitResourceId(true);
+			jsonParser.setDontEncodeElements(REFERENCE_ELEMENTS);
+			return jsonParser;
+		});
+	}
+
+	public static synchronized ValidationStage getInstance(Config config) {
+		if (_instance == null) {
+			_instance = new ValidationStage(config);
+		}
+		return _instance;
+	}
+
+	/**
+	 * Validate the resource in the background if it is sampled. The resource is
+	 * copied, so it may be changed after this call.
+	 * 
+	 * @param resource generated resource
+	 */
+	public void submit(Resource resource) {
+		String type = resource.fhirType();
+		TypeCounts typeCounts = counts.computeIfAbsent(type, k -> new TypeCounts());
+		typeCounts.submitted.incrementAndGet();
+		if (ThreadLocalRandom.current().nextDouble() >= config.getValidationSampleRate(type)) {
+			return;
+		}
+		Resource copy = resource.copy();
+		executor.execute(() -> validate(copy, typeCounts));
+	}
+
+	private void validate(Resource resource, TypeCounts typeCounts) {
+		if (validatedHashes.asMap().putIfAbsent(contentKey(resource), Boolean.TRUE) != null) {
+			typeCounts.duplicates.incrementAndGet();
+			return;
+		}
+		ValidationResult result = getValidator().validate(resource);
+		typeCounts.validated.incrementAndGet();
+		report.add(resource, result);
+		if (!result.isSuccessful()) {
+			typeCounts.failed.incrementAndGet();
+		}
+		for (SingleValidationMessage message : result.getMessages()) {
+			if (message.getSeverity() == ResultSeverityEnum.ERROR
+					|| message.getSeverity() == ResultSeverityEnum.FATAL) {
+				typeCounts.errors.incrementAndGet();
+			} else if (message.getSeverity() == ResultSeverityEnum.WARNING) {
+				typeCounts.warnings.incrementAndGet();
+			}
+		}
+	}
+
+	private synchronized FHIRInstanceValidator getValidator() {
+		if (validator == null) {
+			validator = new FHIRInstanceValidator(config);
+		}
+		return validator;
+	}
+
+	/**
+	 * Key of type, profile and content without id and references
+	 */
+	private String contentKey(Resource resource) {
+		String profile = resource.getMeta().hasProfile() ? resource.getMeta().getProfile().get(0).getValue() : "";
+		String content = parser.get().encodeResourceToString(resource);
+		return resource.fhirType() + "|" + profile + "|" + DigestUtils.md5Hex(content);
+	}
+
+	/**
+	 * Wait for the queued validations, log the results per resource type and
+	 * write the validation report. The next run gets a new stage.
+	 */
+	public void close() {
+		synchronized (ValidationStage.class) {
+			if (_instance == this) {
+				_instance = null;
+			}
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		}
+		for (Map.Entry<String, TypeCounts> entry : new TreeMap<>(counts).entrySet()) {
+			TypeCounts c = entry.getValue();
+			logger.info("Validation {}: {} resources, {} validated, {} duplicates, {} failed ({} errors, {} warnings)",
+					entry.getKey(), c.submitted.get(), c.validated.get(), c.duplicates.get(), c.failed.get(),
+					c.errors.get(), c.warnings.get());
+		}
+		report.write(config.getValidationReport());
+	}
+}
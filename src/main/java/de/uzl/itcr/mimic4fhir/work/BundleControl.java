@@ -29,12 +29,16 @@ import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 public class BundleControl {
 	private Bundle transactionBundle;
 	private int numberOfResources = 0;
+	private long estimatedSize = 0;
 	private int internalBundleNumber = 0;
+	private BundleSizePolicy sizePolicy;
 	
 	/**
 	 * creates a new transaction bundle
+	 * @param sizePolicy policy that decides when the bundle is full
 	 */
-	public BundleControl() {
+	public BundleControl(BundleSizePolicy sizePolicy) {
+		this.sizePolicy = sizePolicy;
 		//new Bundle
 		transactionBundle = new Bundle();
 		transactionBundle.setType(BundleType.TRANSACTION);
@@ -49,6 +53,22 @@ public class BundleControl {
 		return numberOfResources;
 	}
 	
+	/**
+	 * Check if the bundle reached the limit of the size policy
+	 * @return true if a new bundle should be started
+	 */
+	public boolean isFull() {
+		return sizePolicy.isFull(numberOfResources, estimatedSize);
+	}
+	
+	/**
+	 * The resources currently present form the basic bundle that is repeated in
+	 * every bundle of the admission (reported to the size policy)
+	 */
+	public void basicBundleComplete() {
+		sizePolicy.recordBasicBundle(numberOfResources);
+	}
+	
 	/**
 	 * Internal bundle number (how often bundle "reset"?) 
 	 * @return internal bundle number
@@ -71,6 +91,7 @@ public class BundleControl {
 		transactionBundle = new Bundle();
 		transactionBundle.setType(BundleType.TRANSACTION);
 		numberOfResources = 0;
+		estimatedSize = 0;
 		internalBundleNumber++;
 	}
 	
@@ -95,7 +116,7 @@ public class BundleControl {
 		      .setMethod(HTTPVerb.POST);
 		
 		numberOfResources++;
-
+		estimatedSize += sizePolicy.estimateSize(rToAdd);
 	}
 	
 	/**
@@ -111,7 +132,7 @@ public class BundleControl {
 		      .setMethod(HTTPVerb.POST);
 		
 		numberOfResources++;
-		
+		estimatedSize += sizePolicy.estimateSize(rToAdd);
 	}
 	
 	/**
@@ -130,5 +151,6 @@ public class BundleControl {
 		      .setMethod(HTTPVerb.POST);
 		
 		numberOfResources++;
+		estimatedSize += sizePolicy.estimateSize(rToAdd);
 	}
 }
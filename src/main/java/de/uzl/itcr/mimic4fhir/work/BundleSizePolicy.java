@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.work;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Decides when a transaction bundle is full. A bundle is split once it exceeds
+ * the maximum number of resources or the maximum serialized size. The size is
+ * estimated from the average size per resource type, which is measured on a
+ * sample of the added resources.
+ * 
+ * If automatic sizing is enabled, the resource limit follows the latency of
+ * the server transactions: it is reduced when a transaction takes longer than
+ * the target latency and grows again (up to the configured maximum) while
+ * full bundles are answered in less than half of it. The limit never drops to
+ * the size of the basic bundle that is repeated in every bundle of an
+ * admission, so a bundle always has room for events.
+ * 
+ * The adapted limit belongs to one run: the pipeline creates a policy per run
+ * and passes it to the transformers and the uploader.
+ */
+public class BundleSizePolicy {
+
+	private static final Logger logger = LoggerFactory.getLogger(BundleSizePolicy.class);
+
+	// measure every n-th resource, the others use the average of their type
+	private static final int SAMPLE_INTERVAL = 32;
+	private static final int MIN_RESOURCES = 500;
+
+	private final int maxResources;
+	private final long maxBytes;
+	private final boolean autoSize;
+	private final long targetLatencyMillis;
+
+	private volatile int resourceLimit;
+
+	private final Map<String, Long> averageSize = new ConcurrentHashMap<>();
+	private final AtomicLong added = new AtomicLong();
+	// largest basic bundle (patient, encounter, diagnoses, ...) seen so far
+	private final AtomicInteger basicBundleResources = new AtomicInteger();
+	private final ThreadLocal<IParser> parser;
+
+	/**
+	 * Create policy
+	 * 
+	 * @param config Config-Object (limits, automatic sizing, encoding)
+	 */
+	public BundleSizePolicy(Config config) {
+		this.maxResources = Math.max(1, config.getBundleMaxResources());
+		this.maxBytes = config.getBundleMaxSize() * 1024L * 1024L;
+		this.autoSize = config.isAutoBundleSize();
+		this.targetLatencyMillis = config.getUploadTargetLatency();
+		this.resourceLimit = this.maxResources;
+
+		if (this.maxBytes > 0) {
+			FhirContext ctx = FhirContext.forR4();
+			Encoding encoding = config.getEncoding();
+			this.parser = ThreadLocal
+					.withInitial(() -> encoding == Encoding.JSON ? ctx.newJsonParser() : ctx.newXmlParser());
+		} else {
+			this.parser = null;
+		}
+	}
+
+	/**
+	 * Estimated serialized size of a resource, 0 if there is no size limit
+	 * 
+	 * @param resource resource that is added to a bundle
+	 * @return estimated size in bytes (UTF-8)
+	 */
+	public long estimateSize(Resource resource) {
+		if (parser == null) {
+			return 0;
+		}
+		String type = resource.fhirType();
+		Long average = averageSize.get(type);
+		if (average == null || added.incrementAndGet() % SAMPLE_INTERVAL == 0) {
+			long size = parser.get().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8).length;
+			// moving average, recent samples weigh 1/8
+			averageSize.merge(type, size, (old, sample) -> old + (sample - old) / 8);
+			return size;
+		}
+		return average;
+	}
+
+	/**
+	 * Check if a bundle has reached its limit
+	 * 
+	 * @param resources number of resources in the bundle
+	 * @param bytes     estimated size of the bundle in bytes
+	 * @return true if a new bundle should be started
+	 */
+	public boolean isFull(int resources, long bytes) {
+		return resources >= resourceLimit || (maxBytes > 0 && bytes >= maxBytes);
+	}
+
+	/**
+	 * Current maximum number of resources in a bundle
+	 * 
+	 * @return resource limit
+	 */
+	public int getResourceLimit() {
+		return resourceLimit;
+	}
+
+	/**
+	 * Record the size of a basic bundle, the automatic resource limit stays above
+	 * the largest one
+	 * 
+	 * @param resources number of resources of the basic bundle
+	 */
+	public void recordBasicBundle(int resources) {
+		basicBundleResources.accumulateAndGet(resources, Math::max);
+	}
+
+	/**
+	 * Adapt the resource limit to the latency of a finished transaction (only if
+	 * automatic sizing is enabled)
+	 * 
+	 * @param resources number of resources in the transaction
+	 * @param millis    latency of the transaction in ms
+	 */
+	public synchronized void recordTransaction(int resources, long millis) {
+		if (!autoSize || targetLatencyMillis <= 0) {
+			return;
+		}
+		int limit = resourceLimit;
+		if (millis > targetLatencyMillis) {
+			// scale down to the size the server handles in the target latency
+			int fitting = (int) (resources * (targetLatencyMillis * 0.8 / millis));
+			int floor = Math.max(Math.min(MIN_RESOURCES, maxResources), basicBundleResources.get() + 1);
+			limit = Math.max(floor, Math.min(limit, fitting));
+		} else if (millis < targetLatencyMillis / 2 && resources >= limit * 0.9) {
+			limit = Math.min(maxResources, limit + limit / 4);
+		}
+		if (limit != resourceLimit) {
+			logger.info("Bundle limit changed to {} resources", limit);
+			resourceLimit = limit;
+		}
+	}
+}
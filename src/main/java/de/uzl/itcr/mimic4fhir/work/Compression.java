@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.work;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of output files
+ *
+ */
+public enum Compression {
+	NONE(""), GZIP(".gz");
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final String fileSuffix;
+
+	Compression(String fileSuffix) {
+		this.fileSuffix = fileSuffix;
+	}
+
+	/**
+	 * Suffix appended to the file name, e.g. ".gz"
+	 * 
+	 * @return file suffix, empty if not compressed
+	 */
+	public String getFileSuffix() {
+		return fileSuffix;
+	}
+
+	/**
+	 * Wrap a file stream with the compressing stream
+	 * 
+	 * @param out file stream
+	 * @return stream to write the uncompressed data to
+	 * @throws IOException if the stream can't be created
+	 */
+	public OutputStream wrap(OutputStream out) throws IOException {
+		switch (this) {
+		case GZIP:
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		default:
+			return out;
+		}
+	}
+}
@@ -18,6 +18,8 @@ package de.uzl.itcr.mimic4fhir.work;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -63,10 +65,64 @@ public class Config {
 
 	// private: Validation console output for debugging
 	private boolean validateResources;
+	private int validationThreads = 2;
+	private Map<String, Double> validationSampleRates = new HashMap<>();
+	private String validationReport = "validation-report.csv";
 	private boolean useCXR;
 
 	private ModelVersion specification;
 
+	// private: Threading
+	private int threads = 10;
+	private boolean costScheduling = true;
+
+	// private: Bulk extraction (0 = one query per admission and table)
+	private int batchSize = 0;
+
+	// private: Streaming of chart- and labevents
+	private boolean streamEvents = false;
+	private int fetchSize = 1000;
+
+	// private: Output queue
+	private boolean useInProcessQueue = false;
+	private int outputQueueSize = 16;
+	private int outputThreads = 4;
+	private int prefetch = 2;
+
+	// Directory of the persistent terminology cache, null = in memory only
+	private String terminologyCachePath = null;
+
+	// Resolve all codes of the database before the conversion
+	private boolean warmupTerminology = false;
+	private int warmupThreads = 8;
+
+	// Http client of the terminology lookups
+	private int lookupConnections = 20;
+	private int lookupTimeout = 30000;
+	private int lookupRetries = 3;
+
+	// Serialization of bundles
+	private Encoding encoding = Encoding.XML;
+	private boolean prettyPrint = false;
+
+	// Bundle files
+	private Compression compression = Compression.NONE;
+	private int fileWriterThreads = 2;
+
+	// Splitting of bundles, maximum size in MB (0 = no size limit)
+	private int bundleMaxResources = 15000;
+	private int bundleMaxSize = 0;
+	private boolean autoBundleSize = false;
+	private boolean referenceFollowUps = false;
+
+	// Upload to the FHIR server
+	private int uploadConcurrency = 8;
+	private long uploadTargetLatency = 60000;
+	private int uploadRetries = 5;
+
+	// Maximum size of one NDJSON file in MB
+	private int ndjsonMaxFileSize = 1024;
+
 	// ConceptMaps
 	private String ICD9toICD10GM;
 	private String ICD9ToSnomed;
@@ -329,6 +385,71 @@ public class Config {
 		return this.validateResources;
 	}
 
+	/**
+	 * Number of threads validating resources in the background
+	 * 
+	 * @return number of validation threads
+	 */
+	public int getValidationThreads() {
+		return validationThreads;
+	}
+
+	/**
+	 * Set number of threads validating resources in the background
+	 * 
+	 * @param validationThreads number of validation threads
+	 */
+	public void setValidationThreads(int validationThreads) {
+		this.validationThreads = validationThreads;
+	}
+
+	/**
+	 * Part of the resources of a type that is validated. Types without a rate use
+	 * the rate of "*", all resources are validated if that is missing too.
+	 * 
+	 * @param resourceType FHIR resource type
+	 * @return sampling rate between 0 and 1
+	 */
+	public double getValidationSampleRate(String resourceType) {
+		Double rate = validationSampleRates.get(resourceType);
+		if (rate == null) {
+			rate = validationSampleRates.getOrDefault("*", 1.0);
+		}
+		return rate;
+	}
+
+	/**
+	 * Set the sampling rates of validation per resource type, e.g.
+	 * Observation=0.01 to validate one percent of the observations. "*" sets the
+	 * rate of all other types.
+	 * 
+	 * @param validationSampleRates sampling rate between 0 and 1 per resource
+	 *                              type
+	 */
+	public void setValidationSampleRates(Map<String, Double> validationSampleRates) {
+		this.validationSampleRates = validationSampleRates != null ? validationSampleRates : new HashMap<>();
+	}
+
+	/**
+	 * File the aggregated validation messages are written to at the end of the
+	 * run
+	 * 
+	 * @return path of the validation report (CSV, JSON if it ends with .json)
+	 */
+	public String getValidationReport() {
+		return validationReport;
+	}
+
+	/**
+	 * Set file the aggregated validation messages are written to
+	 * 
+	 * @param validationReport path of the validation report (CSV, JSON if it
+	 *                         ends with .json)
+	 */
+	public void setValidationReport(String validationReport) {
+		this.validationReport = validationReport;
+	}
+
 	public boolean useCXR() {
 		return useCXR;
 	}
@@ -345,6 +466,512 @@ public class Config {
 		return this.specification;
 	}
 
+	/**
+	 * Number of conversion threads (and pooled db connections) in threaded mode
+	 * 
+	 * @return number of threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set number of conversion threads (and pooled db connections) in threaded
+	 * mode
+	 * 
+	 * @param threads number of threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Schedule expensive patients first and split patients with many expensive
+	 * admissions across threads
+	 * 
+	 * @return true if patients are ordered by expected cost
+	 */
+	public boolean isCostScheduling() {
+		return costScheduling;
+	}
+
+	/**
+	 * Set if patients are ordered by expected cost instead of being converted in
+	 * the order they were selected
+	 * 
+	 * @param costScheduling order patients by expected cost
+	 */
+	public void setCostScheduling(boolean costScheduling) {
+		this.costScheduling = costScheduling;
+	}
+
+	/**
+	 * Number of patients extracted together with one query per table; 0 if
+	 * patients are queried one by one
+	 * 
+	 * @return batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Set number of patients extracted together with one query per table (e.g.
+	 * 500); 0 to query patients one by one
+	 * 
+	 * @param batchSize batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Are chart- and labevents streamed from the db during conversion instead of
+	 * being loaded completely with the patient?
+	 * 
+	 * @return true if events are streamed
+	 */
+	public boolean isStreamEvents() {
+		return streamEvents;
+	}
+
+	/**
+	 * Set if chart- and labevents are streamed from the db during conversion
+	 * (memory bounded by the bundle size instead of the admission size)
+	 * 
+	 * @param streamEvents true to stream events
+	 */
+	public void setStreamEvents(boolean streamEvents) {
+		this.streamEvents = streamEvents;
+	}
+
+	/**
+	 * Number of rows fetched per round trip when streaming events
+	 * 
+	 * @return fetch size
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Set number of rows fetched per round trip when streaming events
+	 * 
+	 * @param fetchSize fetch size
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Are bundles handed to the output in-process instead of via RabbitMQ?
+	 * 
+	 * @return true if the in-process queue is used
+	 */
+	public boolean useInProcessQueue() {
+		return useInProcessQueue;
+	}
+
+	/**
+	 * Set if bundles are handed to the output in-process (no RabbitMQ required)
+	 * 
+	 * @param useInProcessQueue true to use the in-process queue
+	 */
+	public void setUseInProcessQueue(boolean useInProcessQueue) {
+		this.useInProcessQueue = useInProcessQueue;
+	}
+
+	/**
+	 * Maximum number of bundles waiting for output in the queue
+	 * 
+	 * @return queue capacity
+	 */
+	public int getOutputQueueSize() {
+		return outputQueueSize;
+	}
+
+	/**
+	 * Set maximum number of bundles waiting for output in the queue; transformers
+	 * block when it is full (0 = no limit for RabbitMQ)
+	 * 
+	 * @param outputQueueSize queue capacity
+	 */
+	public void setOutputQueueSize(int outputQueueSize) {
+		this.outputQueueSize = outputQueueSize;
+	}
+
+	/**
+	 * Number of output threads (in-process queue workers or RabbitMQ consumers)
+	 * 
+	 * @return number of output threads
+	 */
+	public int getOutputThreads() {
+		return outputThreads;
+	}
+
+	/**
+	 * Set number of output threads (in-process queue workers or RabbitMQ
+	 * consumers)
+	 * 
+	 * @param outputThreads number of output threads
+	 */
+	public void setOutputThreads(int outputThreads) {
+		this.outputThreads = outputThreads;
+	}
+
+	/**
+	 * Number of unacknowledged bundles a RabbitMQ consumer may hold
+	 * 
+	 * @return prefetch count
+	 */
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * Set number of unacknowledged bundles a RabbitMQ consumer may hold
+	 * 
+	 * @param prefetch prefetch count
+	 */
+	public void setPrefetch(int prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Directory in which ConceptMap and RxNorm lookup results are cached across
+	 * runs; null if results are only cached in memory
+	 * 
+	 * @return cache directory
+	 */
+	public String getTerminologyCachePath() {
+		return terminologyCachePath;
+	}
+
+	/**
+	 * Set directory of the persistent terminology cache
+	 * 
+	 * @param terminologyCachePath cache directory, null to cache in memory only
+	 */
+	public void setTerminologyCachePath(String terminologyCachePath) {
+		this.terminologyCachePath = terminologyCachePath;
+	}
+
+	/**
+	 * Resolve all distinct codes of the database before the conversion starts
+	 * 
+	 * @return true if terminology warm-up is enabled
+	 */
+	public boolean isWarmupTerminology() {
+		return warmupTerminology;
+	}
+
+	/**
+	 * Enable terminology warm-up before the conversion
+	 * 
+	 * @param warmupTerminology true to enable
+	 */
+	public void setWarmupTerminology(boolean warmupTerminology) {
+		this.warmupTerminology = warmupTerminology;
+	}
+
+	/**
+	 * Number of parallel terminology requests during warm-up
+	 * 
+	 * @return number of warm-up threads
+	 */
+	public int getWarmupThreads() {
+		return warmupThreads;
+	}
+
+	/**
+	 * Set number of parallel terminology requests during warm-up
+	 * 
+	 * @param warmupThreads number of warm-up threads
+	 */
+	public void setWarmupThreads(int warmupThreads) {
+		this.warmupThreads = warmupThreads;
+	}
+
+	/**
+	 * Maximum number of connections per terminology server
+	 * 
+	 * @return number of connections
+	 */
+	public int getLookupConnections() {
+		return lookupConnections;
+	}
+
+	/**
+	 * Set maximum number of connections per terminology server
+	 * 
+	 * @param lookupConnections number of connections
+	 */
+	public void setLookupConnections(int lookupConnections) {
+		this.lookupConnections = lookupConnections;
+	}
+
+	/**
+	 * Connect and read timeout of terminology requests
+	 * 
+	 * @return timeout in ms
+	 */
+	public int getLookupTimeout() {
+		return lookupTimeout;
+	}
+
+	/**
+	 * Set connect and read timeout of terminology requests
+	 * 
+	 * @param lookupTimeout timeout in ms
+	 */
+	public void setLookupTimeout(int lookupTimeout) {
+		this.lookupTimeout = lookupTimeout;
+	}
+
+	/**
+	 * Number of retries of a failed terminology request
+	 * 
+	 * @return number of retries
+	 */
+	public int getLookupRetries() {
+		return lookupRetries;
+	}
+
+	/**
+	 * Set number of retries of a failed terminology request
+	 * 
+	 * @param lookupRetries number of retries
+	 */
+	public void setLookupRetries(int lookupRetries) {
+		this.lookupRetries = lookupRetries;
+	}
+
+	/**
+	 * Serialization format of bundles
+	 * 
+	 * @return encoding (XML or JSON)
+	 */
+	public Encoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Set serialization format of bundles
+	 * 
+	 * @param encoding XML or JSON
+	 */
+	public void setEncoding(Encoding encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Serialize bundles with indentation and line breaks
+	 * 
+	 * @return true if pretty printing is enabled
+	 */
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+
+	/**
+	 * Enable pretty printing of bundles (larger output)
+	 * 
+	 * @param prettyPrint true to enable
+	 */
+	public void setPrettyPrint(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+	}
+
+	/**
+	 * Compression of the bundle files
+	 * 
+	 * @return compression
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Set compression of the bundle files
+	 * 
+	 * @param compression NONE or GZIP
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Number of threads writing bundle files in the background
+	 * 
+	 * @return number of file writer threads
+	 */
+	public int getFileWriterThreads() {
+		return fileWriterThreads;
+	}
+
+	/**
+	 * Set number of threads writing bundle files in the background
+	 * 
+	 * @param fileWriterThreads number of file writer threads
+	 */
+	public void setFileWriterThreads(int fileWriterThreads) {
+		this.fileWriterThreads = fileWriterThreads;
+	}
+
+	/**
+	 * Maximum number of resources in one bundle
+	 * 
+	 * @return maximum number of resources
+	 */
+	public int getBundleMaxResources() {
+		return bundleMaxResources;
+	}
+
+	/**
+	 * Set maximum number of resources in one bundle
+	 * 
+	 * @param bundleMaxResources maximum number of resources
+	 */
+	public void setBundleMaxResources(int bundleMaxResources) {
+		this.bundleMaxResources = bundleMaxResources;
+	}
+
+	/**
+	 * Maximum serialized size of one bundle
+	 * 
+	 * @return maximum size in MB, 0 if only the number of resources is limited
+	 */
+	public int getBundleMaxSize() {
+		return bundleMaxSize;
+	}
+
+	/**
+	 * Set maximum serialized size of one bundle
+	 * 
+	 * @param bundleMaxSize maximum size in MB, 0 if only the number of resources
+	 *                      is limited
+	 */
+	public void setBundleMaxSize(int bundleMaxSize) {
+		this.bundleMaxSize = bundleMaxSize;
+	}
+
+	/**
+	 * Adapt the number of resources per bundle to the transaction latency of
+	 * the FHIR server?
+	 * 
+	 * @return true if bundle size is tuned automatically
+	 */
+	public boolean isAutoBundleSize() {
+		return autoBundleSize;
+	}
+
+	/**
+	 * Set if the number of resources per bundle is adapted to the transaction
+	 * latency of the FHIR server (see {@link #getUploadTargetLatency()})
+	 * 
+	 * @param autoBundleSize tune bundle size automatically
+	 */
+	public void setAutoBundleSize(boolean autoBundleSize) {
+		this.autoBundleSize = autoBundleSize;
+	}
+
+	/**
+	 * Do follow-up bundles of a split admission reference patient and encounter
+	 * by conditional references instead of repeating the basic bundle?
+	 * 
+	 * @return true if follow-up bundles only contain references
+	 */
+	public boolean isReferenceFollowUps() {
+		return referenceFollowUps;
+	}
+
+	/**
+	 * Set if follow-up bundles of a split admission reference patient and
+	 * encounter by conditional references instead of repeating the basic bundle
+	 * (patient, hospital, conditions, procedures, transfers, encounter).
+	 * Conditional references are only resolved by the FHIR server, so the
+	 * pipeline ignores this setting for all outputs but
+	 * {@link de.uzl.itcr.mimic4fhir.OutputMode#PUSH_SERVER}.
+	 * 
+	 * @param referenceFollowUps follow-up bundles only contain references
+	 */
+	public void setReferenceFollowUps(boolean referenceFollowUps) {
+		this.referenceFollowUps = referenceFollowUps;
+	}
+
+	/**
+	 * Maximum number of transactions sent to the FHIR server in parallel
+	 * 
+	 * @return maximum upload concurrency
+	 */
+	public int getUploadConcurrency() {
+		return uploadConcurrency;
+	}
+
+	/**
+	 * Set maximum number of transactions sent to the FHIR server in parallel
+	 * 
+	 * @param uploadConcurrency maximum upload concurrency
+	 */
+	public void setUploadConcurrency(int uploadConcurrency) {
+		this.uploadConcurrency = uploadConcurrency;
+	}
+
+	/**
+	 * Transaction latency above which the upload concurrency is reduced
+	 * 
+	 * @return target latency in ms, 0 to adapt to 429/503 responses only
+	 */
+	public long getUploadTargetLatency() {
+		return uploadTargetLatency;
+	}
+
+	/**
+	 * Set transaction latency above which the upload concurrency is reduced
+	 * 
+	 * @param uploadTargetLatency target latency in ms, 0 to adapt to 429/503
+	 *                            responses only
+	 */
+	public void setUploadTargetLatency(long uploadTargetLatency) {
+		this.uploadTargetLatency = uploadTargetLatency;
+	}
+
+	/**
+	 * Number of retries of a transaction rejected with 429/503
+	 * 
+	 * @return number of retries
+	 */
+	public int getUploadRetries() {
+		return uploadRetries;
+	}
+
+	/**
+	 * Set number of retries of a transaction rejected with 429/503
+	 * 
+	 * @param uploadRetries number of retries
+	 */
+	public void setUploadRetries(int uploadRetries) {
+		this.uploadRetries = uploadRetries;
+	}
+
+	/**
+	 * Maximum size of one NDJSON file, a new file is started above
+	 * 
+	 * @return maximum file size in MB
+	 */
+	public int getNdjsonMaxFileSize() {
+		return ndjsonMaxFileSize;
+	}
+
+	/**
+	 * Set maximum size of one NDJSON file
+	 * 
+	 * @param ndjsonMaxFileSize maximum file size in MB
+	 */
+	public void setNdjsonMaxFileSize(int ndjsonMaxFileSize) {
+		this.ndjsonMaxFileSize = ndjsonMaxFileSize;
+	}
+
 	public String getICD9toICD10GM() {
 		return ICD9toICD10GM;
 	}
@@ -21,7 +21,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import de.uzl.itcr.mimic4fhir.model.*;
 import de.uzl.itcr.mimic4fhir.model.manager.StationManager;
@@ -51,7 +56,15 @@ public class ConnectDB {
 	private PreparedStatement statementGetStations;
 	private PreparedStatement statementGetDiagnosticReports;
 	private PreparedStatement statementGetImagingStudies;
-	private PreparedStatement statementGetIcdCodes;;
+	private PreparedStatement statementGetIcdCodes;
+
+	// bulk extraction: one query per table for a whole batch of patients
+	private PreparedStatement statementSelectPatientsFromAdmissionsView;
+	private PreparedStatement statementGetDiagnosesBulk;
+	private PreparedStatement statementGetProceduresBulk;
+	private PreparedStatement statementGetChartEventsBulk;
+	private PreparedStatement statementGetLabEventsBulk;
+	private PreparedStatement statementGetPrescriptionsBulk;
 
 	/**
 	 * Create new DB-Connection with Config-Object
@@ -59,6 +72,18 @@ public class ConnectDB {
 	 * @param configuration
 	 */
 	public ConnectDB(Config configuration) {
+		this(configuration, true);
+	}
+
+	/**
+	 * Create new DB-Connection with Config-Object
+	 *
+	 * @param configuration
+	 * @param createViews   true if the views required for the queries should be
+	 *                      (re)created on this connection; only necessary once per
+	 *                      run, e.g. for the first connection of a pool
+	 */
+	public ConnectDB(Config configuration, boolean createViews) {
 
 		this.configuration = configuration;
 		// Do some stuff to do DB-Connection..
@@ -87,7 +112,9 @@ public class ConnectDB {
 							+ ConnectDB.configuration.getPortPostgres() + "/"
 							+ ConnectDB.configuration.getDbnamePostgres() + schema,
 					ConnectDB.configuration.getUserPostgres(), ConnectDB.configuration.getPassPostgres());
-			this.createViews();
+			if (createViews) {
+				this.createViews();
+			}
 			this.prepareStatements();
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -139,7 +166,7 @@ public class ConnectDB {
 				+ "INNER JOIN mimic_hosp.d_icd_procedures i ON p.icd_code = i.icd_code "
 				+ "WHERE p.subject_id = ? AND p.hadm_id = ? " + "ORDER BY p.seq_num DESC");
 		this.statementGetChartEvents = this.connection.prepareStatement(
-				"SELECT C1.SUBJECT_ID, C1.HADM_ID, C1.CHARTTIME, C1.VALUE, C1.VALUENUM, C1.VALUEUOM, D.LABEL "
+				"SELECT C1.SUBJECT_ID, C1.HADM_ID, C1.CHARTTIME, C1.VALUE, C1.VALUENUM, C1.VALUEUOM, D.LABEL, C1.ITEMID "
 						+ "FROM (SELECT C.SUBJECT_ID, C.HADM_ID, C.CHARTTIME, C.VALUE, C.VALUENUM, C.VALUEUOM, C.ITEMID FROM MIMIC_ICU.CHARTEVENTS C) AS C1 "
 						+ "INNER JOIN MIMIC_ICU.D_ITEMS D ON C1.ITEMID = D.ITEMID " + "WHERE C1.HADM_ID = ?");
 		this.statementGetLabEvents = this.connection.prepareStatement(
@@ -165,6 +192,41 @@ public class ConnectDB {
 				.prepareStatement("SELECT * FROM CXR.STUDIES WHERE SUBJECT_ID = ? AND STUDY_ID = ?");
 		this.statementGetIcdCodes = this.connection
 				.prepareStatement("SELECT icd_code, long_title FROM mimic_hosp.d_icd_procedures WHERE icd_version = ?");
+
+		// Bulk statements, same column layout as the single statements above
+		this.statementSelectPatientsFromAdmissionsView = this.connection
+				.prepareStatement("SELECT * FROM patient_admission_view " + "WHERE patient_subjectid = ANY(?) "
+						+ "ORDER BY patient_subjectid, admission_hadm_id, transfer_id;");
+		this.statementGetDiagnosesBulk = this.connection.prepareStatement("SELECT * FROM mimic_hosp.diagnoses_icd d "
+				+ "INNER JOIN mimic_hosp.d_icd_diagnoses i ON d.icd_code = i.icd_code "
+				+ "WHERE d.hadm_id = ANY(?) " + "ORDER BY d.hadm_id, d.seq_num DESC");
+		this.statementGetProceduresBulk = this.connection.prepareStatement("SELECT * FROM mimic_hosp.procedures_icd p "
+				+ "INNER JOIN mimic_hosp.d_icd_procedures i ON p.icd_code = i.icd_code "
+				+ "WHERE p.hadm_id = ANY(?) " + "ORDER BY p.hadm_id, p.seq_num DESC");
+		this.statementGetChartEventsBulk = this.connection.prepareStatement(
+				"SELECT C1.SUBJECT_ID, C1.HADM_ID, C1.CHARTTIME, C1.VALUE, C1.VALUENUM, C1.VALUEUOM, D.LABEL, C1.ITEMID "
+						+ "FROM (SELECT C.SUBJECT_ID, C.HADM_ID, C.CHARTTIME, C.VALUE, C.VALUENUM, C.VALUEUOM, C.ITEMID FROM MIMIC_ICU.CHARTEVENTS C) AS C1 "
+						+ "INNER JOIN MIMIC_ICU.D_ITEMS D ON C1.ITEMID = D.ITEMID " + "WHERE C1.HADM_ID = ANY(?)");
+		this.statementGetLabEventsBulk = this.connection.prepareStatement(
+				"SELECT L1.SUBJECT_ID, L1.HADM_ID, L1.CHARTTIME, L1.VALUE, L1.VALUENUM, L1.VALUEUOM, L1.FLAG, D.LABEL, D.FLUID, D.LOINC_CODE, L1.LABEVENT_ID, L1.COMMENTS "
+						+ "FROM (SELECT L.SUBJECT_ID, L.HADM_ID, L.CHARTTIME, L.VALUE, L.VALUENUM, L.VALUEUOM, L.FLAG, L.ITEMID, L.LABEVENT_ID, L.COMMENTS "
+						+ "FROM MIMIC_HOSP.LABEVENTS L) AS L1 INNER JOIN MIMIC_HOSP.D_LABITEMS D ON L1.ITEMID = D.ITEMID "
+						+ "WHERE L1.SUBJECT_ID = ANY(?) AND L1.HADM_ID = ANY(?)");
+		this.statementGetPrescriptionsBulk = this.connection.prepareStatement(
+				"SELECT * FROM MIMIC_HOSP.PRESCRIPTIONS WHERE SUBJECT_ID = ANY(?) AND HADM_ID = ANY(?)");
+	}
+
+	/**
+	 * Close the connection of this instance (and with it all prepared statements)
+	 */
+	public void close() {
+		if (this.connection != null) {
+			try {
+				this.connection.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
 	public static Connection getConnection() {
@@ -406,41 +468,119 @@ public class ConnectDB {
 			ResultSet rs = statementGetChartEvents.executeQuery();
 
 			while (rs.next()) {
+				MChartevent event = createChartevent(rs, patientSubjId, admission.getAdmissionId());
+				if (event != null) {
+					admission.addEvent(event);
+				}
+			}
+		} catch (SQLException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
 
-				// Value = null ausschließen -> kein Wert
-				if (rs.getObject(5) != null) {
+	/**
+	 * Stream the chartevents of an admission row by row to the consumer instead of
+	 * collecting them in the admission. Uses a server side cursor (autocommit off,
+	 * fetch size from config), so only one fetch block is held in memory.
+	 *
+	 * @param admission     admission of the events
+	 * @param patientSubjId subjectId of the patient
+	 * @param consumer      receives each event as it is read
+	 */
+	public void streamChartEvents(MAdmission admission, String patientSubjId, Consumer<MChartevent> consumer) {
+		streamRows(statementGetChartEvents, rs -> {
+			MChartevent event = createChartevent(rs, patientSubjId, admission.getAdmissionId());
+			if (event != null) {
+				consumer.accept(event);
+			}
+		}, Integer.parseInt(admission.getAdmissionId()));
+	}
 
-					MChartevent event = new MChartevent();
+	/**
+	 * Stream the labevents of an admission row by row to the consumer instead of
+	 * collecting them in the admission (see
+	 * {@link #streamChartEvents(MAdmission, String, Consumer)})
+	 *
+	 * @param admission     admission of the events
+	 * @param patientSubjId subjectId of the patient
+	 * @param consumer      receives each event as it is read
+	 */
+	public void streamLabEvents(MAdmission admission, String patientSubjId, Consumer<MLabevent> consumer) {
+		streamRows(statementGetLabEvents, rs -> {
+			MLabevent event = createLabevent(rs, patientSubjId, admission.getAdmissionId());
+			if (event != null) {
+				consumer.accept(event);
+			}
+		}, Integer.parseInt(patientSubjId), Integer.parseInt(admission.getAdmissionId()));
+	}
 
-					// Rekord-Datum
-					event.setRecordDate(rs.getDate(3));
+	private interface RowHandler {
+		void handle(ResultSet rs) throws SQLException;
+	}
 
-					// Type (Item)
-					event.setMeasurementType(rs.getString(7));
+	private void streamRows(PreparedStatement statement, RowHandler handler, int... parameters) {
+		boolean autoCommit = true;
+		try {
+			// pgjdbc only uses a cursor (and the fetch size) inside a transaction
+			autoCommit = this.connection.getAutoCommit();
+			this.connection.setAutoCommit(false);
+			statement.setFetchSize(configuration.getFetchSize());
+			for (int i = 0; i < parameters.length; i++) {
+				statement.setInt(i + 1, parameters[i]);
+			}
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					handler.handle(rs);
+				}
+			}
+			this.connection.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			try {
+				this.connection.rollback();
+			} catch (SQLException e1) {
+				e1.printStackTrace();
+			}
+		} finally {
+			try {
+				statement.setFetchSize(0);
+				this.connection.setAutoCommit(autoCommit);
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 
-					// Value + ValueNum
-					event.setValue(rs.getString(4));
-					if (rs.getObject(5) != null) {
-						event.setNumValue(rs.getDouble(5));
-					}
+	private MChartevent createChartevent(ResultSet rs, String patientSubjId, String hadmId) throws SQLException {
+		// Value = null ausschließen -> kein Wert
+		if (rs.getObject(5) == null) {
+			return null;
+		}
 
-					// Unit
-					if (rs.getObject(6) != null) {
-						event.setUnit(rs.getString(6));
-					}
+		MChartevent event = new MChartevent();
 
-					event.setPatId(patientSubjId);
+		// Rekord-Datum
+		event.setRecordDate(rs.getDate(3));
 
-					event.setEncId(admission.getAdmissionId());
+		// Type (Item)
+		event.setMeasurementType(rs.getString(7));
+		event.setItemId(rs.getInt(8));
 
-					admission.addEvent(event);
+		// Value + ValueNum
+		event.setValue(rs.getString(4));
+		event.setNumValue(rs.getDouble(5));
 
-				}
-			}
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		// Unit
+		if (rs.getObject(6) != null) {
+			event.setUnit(rs.getString(6));
 		}
+
+		event.setPatId(patientSubjId);
+
+		event.setEncId(hadmId);
+
+		return event;
 	}
 
 	private void getLabEvents(MAdmission admission, String patientSubjId) {
@@ -454,62 +594,68 @@ public class ConnectDB {
 			statementGetLabEvents.setInt(2, Integer.parseInt(admission.getAdmissionId()));
 			ResultSet rs = statementGetLabEvents.executeQuery();
 
-			// Test
 			while (rs.next()) {
-				// Value = null ausschließen -> kein Wert
-				if (rs.getObject(4) != null) {
+				MLabevent event = createLabevent(rs, patientSubjId, admission.getAdmissionId());
+				if (event != null) {
+					admission.addLabEvent(event);
+				}
+			}
+		} catch (SQLException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
 
-					MLabevent event = new MLabevent();
+	private MLabevent createLabevent(ResultSet rs, String patientSubjId, String hadmId) throws SQLException {
+		// Value = null ausschließen -> kein Wert
+		if (rs.getObject(4) == null) {
+			return null;
+		}
 
-					// Rekord-Datum
-					event.setAcquisitionDate(rs.getDate(3));
+		MLabevent event = new MLabevent();
 
-					// Type (Item)
-					event.setMeasurementType(rs.getString(8));
+		// Rekord-Datum
+		event.setAcquisitionDate(rs.getDate(3));
 
-					// Fluid
-					event.setFluid(rs.getString(9));
+		// Type (Item)
+		event.setMeasurementType(rs.getString(8));
 
-					// Loinc-Code
-					if (rs.getObject(10) != null) {
-						event.setLoinc(rs.getString(10));
-					}
+		// Fluid
+		event.setFluid(rs.getString(9));
 
-					// Value + ValueNum
-					event.setValue(rs.getString(4));
-					if (rs.getObject(5) != null) {
-						event.setNumValue(rs.getDouble(5));
-					}
+		// Loinc-Code
+		if (rs.getObject(10) != null) {
+			event.setLoinc(rs.getString(10));
+		}
 
-					// Unit
-					if (rs.getObject(6) != null) {
-						event.setUnit(rs.getString(6));
-					}
+		// Value + ValueNum
+		event.setValue(rs.getString(4));
+		if (rs.getObject(5) != null) {
+			event.setNumValue(rs.getDouble(5));
+		}
 
-					// Flag
-					// "delta" - might mean both, not considered
-					if (rs.getObject(7) != null && rs.getString(7) == "abnormal") {
-						event.setAbnormal(true);
-					}
+		// Unit
+		if (rs.getObject(6) != null) {
+			event.setUnit(rs.getString(6));
+		}
 
-					// Labevent_id
-					event.setLabeventId(rs.getInt(11));
+		// Flag
+		// "delta" - might mean both, not considered
+		if ("abnormal".equals(rs.getString(7))) {
+			event.setAbnormal(true);
+		}
 
-					// Comments
-					event.setComments(rs.getString(12));
+		// Labevent_id
+		event.setLabeventId(rs.getInt(11));
 
-					event.setPatId(patientSubjId);
+		// Comments
+		event.setComments(rs.getString(12));
 
-					event.setEncId(admission.getAdmissionId());
+		event.setPatId(patientSubjId);
 
-					admission.addLabEvent(event);
+		event.setEncId(hadmId);
 
-				}
-			}
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		return event;
 	}
 
 	/**
@@ -560,21 +706,24 @@ public class ConnectDB {
 			statementGetDiagnoses.setInt(2, Integer.parseInt(adm.getAdmissionId()));
 			ResultSet rs = statementGetDiagnoses.executeQuery();
 			while (rs.next()) {
-				MDiagnose mDiag = new MDiagnose();
-				mDiag.setIcdCode(rs.getString(4));
-				mDiag.setLongTitle(rs.getString(7));
-				mDiag.setSeqNumber(rs.getInt(3));
-				mDiag.setIcdVersion(rs.getString(5));
-				mDiag.setPatId(patId);
-				mDiag.setIcdCode(adm.getAdmissionId());
-
-				adm.addDiagnose(mDiag);
+				adm.addDiagnose(createDiagnose(rs, patId, adm.getAdmissionId()));
 			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 	}
 
+	private MDiagnose createDiagnose(ResultSet rs, String patId, String hadmId) throws SQLException {
+		MDiagnose mDiag = new MDiagnose();
+		mDiag.setIcdCode(rs.getString(4));
+		mDiag.setLongTitle(rs.getString(7));
+		mDiag.setSeqNumber(rs.getInt(3));
+		mDiag.setIcdVersion(rs.getString(5));
+		mDiag.setPatId(patId);
+		mDiag.setEncId(hadmId);
+		return mDiag;
+	}
+
 	private void getProcedures(String patId, MAdmission adm) {
 		/*
 		 * Schema name added to table name due to structural changes in MIMIC IV
@@ -588,22 +737,7 @@ public class ConnectDB {
 			statementGetProcedures.setInt(2, Integer.parseInt(adm.getAdmissionId()));
 			ResultSet rs = statementGetProcedures.executeQuery();
 			while (rs.next()) {
-				MProcedure mProc = new MProcedure();
-				mProc.setIcdCode(rs.getString(5));
-				mProc.setLongTitle(rs.getString(9));
-				mProc.setSeqNumber(rs.getInt(3));
-				switch (rs.getString(6)) {
-				case "9":
-					mProc.setIcdVersion(MProcedure.IcdVersion.ICD9PROC);
-					break;
-				case "10":
-					mProc.setIcdVersion(MProcedure.IcdVersion.ICD10PROC);
-					break;
-				}
-				mProc.setPatId(patId);
-				mProc.setEncId(adm.getAdmissionId());
-
-				adm.addProcedure(mProc);
+				adm.addProcedure(createProcedure(rs, patId, adm.getAdmissionId()));
 			}
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
@@ -611,6 +745,24 @@ public class ConnectDB {
 		}
 	}
 
+	private MProcedure createProcedure(ResultSet rs, String patId, String hadmId) throws SQLException {
+		MProcedure mProc = new MProcedure();
+		mProc.setIcdCode(rs.getString(5));
+		mProc.setLongTitle(rs.getString(9));
+		mProc.setSeqNumber(rs.getInt(3));
+		switch (rs.getString(6)) {
+		case "9":
+			mProc.setIcdVersion(MProcedure.IcdVersion.ICD9PROC);
+			break;
+		case "10":
+			mProc.setIcdVersion(MProcedure.IcdVersion.ICD10PROC);
+			break;
+		}
+		mProc.setPatId(patId);
+		mProc.setEncId(hadmId);
+		return mProc;
+	}
+
 	/**
 	 * This method is disabled due to its corresponding table not currently being
 	 * available in the database
@@ -647,52 +799,7 @@ public class ConnectDB {
 			statementGetPrescriptions.setInt(2, Integer.parseInt(admission.getAdmissionId()));
 			ResultSet rs = statementGetPrescriptions.executeQuery();
 			while (rs.next()) {
-				MPrescription pres = new MPrescription();
-
-				// Column id's of the two columns changed from 5 to 4 and 6 to 5 respectively
-				pres.setStart(rs.getDate(4));
-				pres.setEnd(rs.getDate(5));
-
-				// 7 to 6
-				pres.setDrugtype(rs.getString(6));
-				// 8 to 7
-				pres.setDrug(rs.getString(7));
-
-				/*
-				 * Both columns where removed from the prescriptions table
-				 *
-				 * pres.setDrugNamePoe(rs.getString(8));
-				 * pres.setDrugNameGeneric(rs.getString(10));
-				 */
-
-				// This column is no longer present in the prescriptions table
-				// pres.setFormularyDrugCd(rs.getString(11));
-
-				// 12 to 8
-				pres.setGsn(rs.getString(8));
-				// 13 to 9
-				pres.setNdc(rs.getString(9));
-				// 14 to 10
-				pres.setProdStrength(rs.getString(10));
-				// Attribute represented in the KDS spec thus it is included
-
-				// 15 to 11
-				pres.setDoseValRx(rs.getString(12));
-				// 16 to 12
-				pres.setDoseUnitRx(rs.getString(13));
-				// 17 to 13
-				pres.setFormValDisp(rs.getString(14));
-				// 18 to 14
-				pres.setFormUnitDisp(rs.getString(15));
-				// 19 to 15
-				pres.setRoute(rs.getString(17));
-
-				pres.setPatId(patientSubjId);
-
-				pres.setEncId(admission.getAdmissionId());
-
-				admission.addPrescription(pres);
-
+				admission.addPrescription(createPrescription(rs, patientSubjId, admission.getAdmissionId()));
 			}
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
@@ -700,6 +807,54 @@ public class ConnectDB {
 		}
 	}
 
+	private MPrescription createPrescription(ResultSet rs, String patientSubjId, String hadmId) throws SQLException {
+		MPrescription pres = new MPrescription();
+
+		// Column id's of the two columns changed from 5 to 4 and 6 to 5 respectively
+		pres.setStart(rs.getDate(4));
+		pres.setEnd(rs.getDate(5));
+
+		// 7 to 6
+		pres.setDrugtype(rs.getString(6));
+		// 8 to 7
+		pres.setDrug(rs.getString(7));
+
+		/*
+		 * Both columns where removed from the prescriptions table
+		 *
+		 * pres.setDrugNamePoe(rs.getString(8));
+		 * pres.setDrugNameGeneric(rs.getString(10));
+		 */
+
+		// This column is no longer present in the prescriptions table
+		// pres.setFormularyDrugCd(rs.getString(11));
+
+		// 12 to 8
+		pres.setGsn(rs.getString(8));
+		// 13 to 9
+		pres.setNdc(rs.getString(9));
+		// 14 to 10
+		pres.setProdStrength(rs.getString(10));
+		// Attribute represented in the KDS spec thus it is included
+
+		// 15 to 11
+		pres.setDoseValRx(rs.getString(12));
+		// 16 to 12
+		pres.setDoseUnitRx(rs.getString(13));
+		// 17 to 13
+		pres.setFormValDisp(rs.getString(14));
+		// 18 to 14
+		pres.setFormUnitDisp(rs.getString(15));
+		// 19 to 15
+		pres.setRoute(rs.getString(17));
+
+		pres.setPatId(patientSubjId);
+
+		pres.setEncId(hadmId);
+
+		return pres;
+	}
+
 	private void getTransfers(MAdmission admission, String patientSubjId) {
 		/*
 		 * Schema name added to table name due to structural changes in MIMIC IV
@@ -932,79 +1087,204 @@ public class ConnectDB {
 	}
 
 	public MPatient getPatientBySubjectId(String subjectId) {
+		return getPatientBySubjectId(subjectId, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Load a patient with a part of its admissions, so a patient with many
+	 * admissions can be converted by several threads
+	 *
+	 * @param subjectId      subjectId of the patient in patients-Table
+	 * @param firstAdmission index of the first admission to load (admissions
+	 *                       ordered by hadm_id)
+	 * @param endAdmission   index after the last admission to load
+	 * @return MPatient with the admissions firstAdmission..endAdmission-1;
+	 *         diagnostic reports only with the first admission
+	 */
+	public MPatient getPatientBySubjectId(String subjectId, int firstAdmission, int endAdmission) {
 		try {
 			this.statementSelectOnePatientFromAdmissionsView.setInt(1, Integer.parseInt(subjectId));
 			ResultSet rs = statementSelectOnePatientFromAdmissionsView.executeQuery();
-			MPatient mPatient = new MPatient();
-			boolean hasGottenPatientData = false;
-			String currentHadmId = null;
-			String previousHadmId = null;
-			int transferIndex = 0;
-			MAdmission mAdm = null;
+			Map<String, MPatient> patients = new LinkedHashMap<>();
+			Map<String, MAdmission> admissions = new LinkedHashMap<>();
+			while (rs.next()) {
+				addAdmissionViewRow(rs, patients, admissions);
+			}
+			MPatient mPatient = patients.isEmpty() ? new MPatient() : patients.values().iterator().next();
+			List<MAdmission> all = mPatient.getAdmissions();
+			mPatient.setAdmissions(new ArrayList<>(all.subList(Math.min(firstAdmission, all.size()),
+					Math.min(endAdmission, all.size()))));
+			for (MAdmission mAdm : mPatient.getAdmissions()) {
+				getDetailsForMAdmissionWithoutTransfers(mAdm, mPatient.getPatientSubjectId());
+			}
+			if (configuration.useCXR() && firstAdmission == 0) {
+				getDiagnosticReports(mPatient);
+			}
+			return mPatient;
+		} catch (SQLException throwables) {
+			throwables.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Set-based extraction of a whole batch of patients: instead of one query per
+	 * admission and table, one query per table is run for all patients of the
+	 * batch and the rows are stitched into the MPatient/MAdmission graphs in
+	 * memory.
+	 *
+	 * @param subjectIds subjectIds of the patients in patients-Table
+	 * @return filled MPatient-Objects in the order of the patient_admission_view
+	 */
+	public List<MPatient> getPatientsBySubjectIds(List<String> subjectIds) {
+		try {
+			Map<String, MPatient> patients = new LinkedHashMap<>();
+			Map<String, MAdmission> admissions = new HashMap<>();
+
+			statementSelectPatientsFromAdmissionsView.setArray(1, createIntArray(subjectIds));
+			ResultSet rs = statementSelectPatientsFromAdmissionsView.executeQuery();
 			while (rs.next()) {
-				if (!hasGottenPatientData) {
-					// SUBJECT_ID
-					mPatient.setPatientSubjectId(rs.getString(1));
-					// GENDER
-					mPatient.setGender(rs.getString(2));
-					// DOD
-					mPatient.setDeathDate(rs.getDate(6));
-					hasGottenPatientData = true;
+				addAdmissionViewRow(rs, patients, admissions);
+			}
+
+			if (!admissions.isEmpty()) {
+				Array subjectArray = createIntArray(new ArrayList<>(patients.keySet()));
+				Array hadmArray = createIntArray(new ArrayList<>(admissions.keySet()));
+
+				// Diagnoses
+				statementGetDiagnosesBulk.setArray(1, hadmArray);
+				rs = statementGetDiagnosesBulk.executeQuery();
+				while (rs.next()) {
+					MAdmission adm = admissions.get(rs.getString(2));
+					adm.addDiagnose(createDiagnose(rs, adm.getPatId(), adm.getAdmissionId()));
+				}
+
+				// Procedures
+				statementGetProceduresBulk.setArray(1, hadmArray);
+				rs = statementGetProceduresBulk.executeQuery();
+				while (rs.next()) {
+					MAdmission adm = admissions.get(rs.getString(2));
+					adm.addProcedure(createProcedure(rs, adm.getPatId(), adm.getAdmissionId()));
 				}
-				currentHadmId = rs.getString("admission_hadm_id");
-
-				if (currentHadmId == null) {
-					System.out.println(String.format("Subject %s has no admission!", subjectId));
-				} else {
-
-					if (!currentHadmId.equals(previousHadmId)) {
-						// this is a new admission
-						if (previousHadmId != null) {
-							// when we encounter a new HADM id, we need to push the previous admission
-							// however, this can't be done during the processing of the first db row
-							mPatient.addAdmission(mAdm);
+
+				// Chart- and Labevents (streamed later during conversion if enabled)
+				if (!configuration.isStreamEvents()) {
+					statementGetChartEventsBulk.setArray(1, hadmArray);
+					rs = statementGetChartEventsBulk.executeQuery();
+					while (rs.next()) {
+						MAdmission adm = admissions.get(rs.getString(2));
+						MChartevent event = createChartevent(rs, adm.getPatId(), adm.getAdmissionId());
+						if (event != null) {
+							adm.addEvent(event);
 						}
-						mAdm = new MAdmission();
-						transferIndex = 0;
-						mAdm.setAdmissionId(rs.getString("admission_hadm_id"));
-						mAdm.setAdmissionTime(rs.getDate("admittime"));
-						mAdm.setDischargeTime(rs.getDate("dischtime"));
-						mAdm.setAdmissionType(rs.getString("admission_type"));
-						mAdm.setDischargeLocation(rs.getString("discharge_location"));
-						mAdm.setMaritalStatus(rs.getString("marital_status"));
-						mAdm.setLanguage(rs.getString("language"));
-						mAdm.setAdmissionLocation(rs.getString("admission_location"));
-						getDetailsForMAdmissionWithoutTransfers(mAdm, mPatient.getPatientSubjectId());
 					}
 
-					MTransfer mTransfer = new MTransfer();
-
-					mTransfer.setTransferId(rs.getString("transfer_id") + "-" + ++transferIndex);
-					mTransfer.setEventType(rs.getString("eventtype"));
-					mTransfer.setCareUnit(rs.getString("careunit"));
-					mTransfer.setIntime(rs.getDate("intime"));
-					mTransfer.setOuttime(rs.getDate("outtime"));
-					assert mAdm != null;
-					mAdm.addTransfer(mTransfer);
+					statementGetLabEventsBulk.setArray(1, subjectArray);
+					statementGetLabEventsBulk.setArray(2, hadmArray);
+					rs = statementGetLabEventsBulk.executeQuery();
+					while (rs.next()) {
+						MAdmission adm = admissions.get(rs.getString(2));
+						MLabevent event = createLabevent(rs, adm.getPatId(), adm.getAdmissionId());
+						if (event != null) {
+							adm.addLabEvent(event);
+						}
+					}
+				}
 
-					previousHadmId = currentHadmId;
+				// Prescriptions
+				statementGetPrescriptionsBulk.setArray(1, subjectArray);
+				statementGetPrescriptionsBulk.setArray(2, hadmArray);
+				rs = statementGetPrescriptionsBulk.executeQuery();
+				while (rs.next()) {
+					MAdmission adm = admissions.get(rs.getString(2));
+					adm.addPrescription(createPrescription(rs, adm.getPatId(), adm.getAdmissionId()));
 				}
 			}
+
 			if (configuration.useCXR()) {
-				getDiagnosticReports(mPatient);
+				for (MPatient mPatient : patients.values()) {
+					getDiagnosticReports(mPatient);
+				}
 			}
-			return mPatient;
+			return new ArrayList<>(patients.values());
 		} catch (SQLException throwables) {
 			throwables.printStackTrace();
 		}
 		return null;
 	}
 
+	/**
+	 * Add one row of the patient_admission_view (patient x admission x transfer)
+	 * to the already read patients and admissions
+	 *
+	 * @param rs         result set positioned on the row
+	 * @param patients   patients by subject_id
+	 * @param admissions admissions by hadm_id
+	 * @throws SQLException if a column can't be read
+	 */
+	private void addAdmissionViewRow(ResultSet rs, Map<String, MPatient> patients, Map<String, MAdmission> admissions)
+			throws SQLException {
+		String subjectId = rs.getString(1);
+		MPatient mPatient = patients.get(subjectId);
+		if (mPatient == null) {
+			mPatient = new MPatient();
+			// SUBJECT_ID
+			mPatient.setPatientSubjectId(subjectId);
+			// GENDER
+			mPatient.setGender(rs.getString(2));
+			// DOD
+			mPatient.setDeathDate(rs.getDate(6));
+			patients.put(subjectId, mPatient);
+		}
+
+		String hadmId = rs.getString("admission_hadm_id");
+		if (hadmId == null) {
+			System.out.println(String.format("Subject %s has no admission!", subjectId));
+			return;
+		}
+
+		MAdmission mAdm = admissions.get(hadmId);
+		if (mAdm == null) {
+			// this is a new admission
+			mAdm = new MAdmission();
+			mAdm.setAdmissionId(hadmId);
+			mAdm.setAdmissionTime(rs.getDate("admittime"));
+			mAdm.setDischargeTime(rs.getDate("dischtime"));
+			mAdm.setAdmissionType(rs.getString("admission_type"));
+			mAdm.setDischargeLocation(rs.getString("discharge_location"));
+			mAdm.setMaritalStatus(rs.getString("marital_status"));
+			mAdm.setLanguage(rs.getString("language"));
+			mAdm.setAdmissionLocation(rs.getString("admission_location"));
+			mAdm.setPatId(subjectId);
+			admissions.put(hadmId, mAdm);
+			mPatient.addAdmission(mAdm);
+		}
+
+		MTransfer mTransfer = new MTransfer();
+		mTransfer.setTransferId(rs.getString("transfer_id") + "-" + (mAdm.getTransfers().size() + 1));
+		mTransfer.setEventType(rs.getString("eventtype"));
+		mTransfer.setCareUnit(rs.getString("careunit"));
+		mTransfer.setIntime(rs.getDate("intime"));
+		mTransfer.setOuttime(rs.getDate("outtime"));
+		mAdm.addTransfer(mTransfer);
+	}
+
+	private Array createIntArray(List<String> ids) throws SQLException {
+		Integer[] values = new Integer[ids.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = Integer.parseInt(ids.get(i));
+		}
+		return this.connection.createArrayOf("integer", values);
+	}
+
 	public MAdmission getDetailsForMAdmissionWithoutTransfers(MAdmission mAdmission, String subjectId) {
 		getDiagnoses(subjectId, mAdmission);
 		getProcedures(subjectId, mAdmission);
-		getChartEvents(mAdmission, subjectId);
-		getLabEvents(mAdmission, subjectId);
+		// Chart- and Labevents are streamed during conversion if enabled
+		if (!configuration.isStreamEvents()) {
+			getChartEvents(mAdmission, subjectId);
+			getLabEvents(mAdmission, subjectId);
+		}
 		getPrescriptions(mAdmission, subjectId);
 		return mAdmission;
 	}
@@ -1071,6 +1351,120 @@ public class ConnectDB {
 		}
 	}
 
+	/**
+	 * Get all distinct diagnosis icd codes of a version used in the database
+	 *
+	 * @param version icd version
+	 * @return list of icd codes, null on error
+	 */
+	public List<String> getDistinctDiagnosisCodes(IcdVersion version) {
+		return getDistinctValues("SELECT DISTINCT icd_code FROM mimic_hosp.diagnoses_icd WHERE icd_version = ?",
+				version.valueOf());
+	}
+
+	/**
+	 * Get all distinct procedure icd codes of a version used in the database
+	 *
+	 * @param version icd version
+	 * @return list of icd codes, null on error
+	 */
+	public List<String> getDistinctProcedureCodes(IcdVersion version) {
+		return getDistinctValues("SELECT DISTINCT icd_code FROM mimic_hosp.procedures_icd WHERE icd_version = ?",
+				version.valueOf());
+	}
+
+	/**
+	 * Get all distinct NDCs used in prescriptions
+	 *
+	 * @return list of NDCs, null on error
+	 */
+	public List<String> getDistinctNdcs() {
+		return getDistinctValues(
+				"SELECT DISTINCT ndc FROM MIMIC_HOSP.PRESCRIPTIONS WHERE ndc IS NOT NULL AND ndc <> '0'");
+	}
+
+	/**
+	 * Get all distinct GSNs of prescriptions without NDC (a GSN value may
+	 * contain multiple space separated codes)
+	 *
+	 * @return list of GSN values, null on error
+	 */
+	public List<String> getDistinctGsnsWithoutNdc() {
+		return getDistinctValues("SELECT DISTINCT gsn FROM MIMIC_HOSP.PRESCRIPTIONS "
+				+ "WHERE gsn IS NOT NULL AND (ndc IS NULL OR ndc = '0')");
+	}
+
+	/**
+	 * Estimated conversion cost of the admissions of the given patients, to
+	 * schedule expensive patients first. The estimate approximates the number
+	 * of events from the length of stay: most chartevents are recorded during
+	 * ICU stays, labevents during the whole hospital stay.
+	 *
+	 * @param subjectIds subjectIds of the patients in patients-Table
+	 * @return per subject_id the costs of its admissions ordered by hadm_id,
+	 *         null on error
+	 */
+	public Map<String, List<Long>> getAdmissionCosts(List<String> subjectIds) {
+		String sql = "SELECT a.subject_id, "
+				+ "50 + COALESCE(EXTRACT(EPOCH FROM (a.dischtime - a.admittime)) / 3600, 0) "
+				+ "+ 40 * 24 * COALESCE((SELECT SUM(i.los) FROM mimic_icu.icustays i WHERE i.hadm_id = a.hadm_id), 0) "
+				+ "FROM mimic_core.admissions a WHERE a.subject_id = ANY(?) ORDER BY a.subject_id, a.hadm_id";
+		Map<String, List<Long>> costs = new HashMap<>();
+		try (PreparedStatement statement = this.connection.prepareStatement(sql)) {
+			statement.setArray(1, createIntArray(subjectIds));
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				costs.computeIfAbsent(rs.getString(1), k -> new ArrayList<>()).add(Math.round(rs.getDouble(2)));
+			}
+			return costs;
+		} catch (SQLException exc) {
+			System.out.println(exc.getMessage());
+			exc.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Itemids of chartevent items, to look up codes by itemid instead of label
+	 *
+	 * @param labels labels in d_items
+	 * @return label per itemid, null on error
+	 */
+	public Map<Integer, String> getChartItemLabels(Collection<String> labels) {
+		Map<Integer, String> items = new HashMap<>();
+		try (PreparedStatement statement = this.connection
+				.prepareStatement("SELECT itemid, label FROM mimic_icu.d_items WHERE label = ANY(?)")) {
+			statement.setArray(1, this.connection.createArrayOf("text", labels.toArray()));
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				items.put(rs.getInt(1), rs.getString(2));
+			}
+			return items;
+		} catch (SQLException exc) {
+			System.out.println(exc.getMessage());
+			exc.printStackTrace();
+			return null;
+		}
+	}
+
+	private List<String> getDistinctValues(String sql, int... params) {
+		List<String> values = new ArrayList<>();
+		try (PreparedStatement statement = this.connection.prepareStatement(sql)) {
+			for (int i = 0; i < params.length; i++) {
+				statement.setInt(i + 1, params[i]);
+			}
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				values.add(rs.getString(1));
+			}
+			return values;
+		} catch (SQLException exc) {
+			System.out.println(exc.getMessage());
+			exc.printStackTrace();
+			return null;
+		}
+	}
+
 	public void printDBStructure() {
 		PreparedStatement statement;
 		ResultSet rs;
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.work;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed size pool of {@link ConnectDB} instances. Each instance owns its own
+ * connection and prepared statements, so a worker thread that borrowed one can
+ * query the database without being serialized against the other workers.
+ */
+public class ConnectDBPool {
+
+	private final BlockingQueue<ConnectDB> idle;
+	private final List<ConnectDB> all;
+
+	/**
+	 * Open the given number of connections. The views required by the queries
+	 * are only created by the first connection.
+	 *
+	 * @param configuration Config-Object
+	 * @param size          number of connections in the pool
+	 */
+	public ConnectDBPool(Config configuration, int size) {
+		if (size < 1) {
+			size = 1;
+		}
+		this.idle = new ArrayBlockingQueue<>(size);
+		this.all = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			ConnectDB connectDB = new ConnectDB(configuration, i == 0);
+			this.all.add(connectDB);
+			this.idle.add(connectDB);
+		}
+	}
+
+	/**
+	 * Take a connection from the pool, waiting until one is available. Has to be
+	 * handed back with {@link #release(ConnectDB)}.
+	 *
+	 * @return exclusive ConnectDB for the calling thread
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public ConnectDB borrow() throws InterruptedException {
+		return this.idle.take();
+	}
+
+	/**
+	 * Hand a borrowed connection back to the pool
+	 *
+	 * @param connectDB connection obtained by {@link #borrow()}
+	 */
+	public void release(ConnectDB connectDB) {
+		if (connectDB != null) {
+			this.idle.offer(connectDB);
+		}
+	}
+
+	/**
+	 * Number of connections in this pool
+	 *
+	 * @return pool size
+	 */
+	public int size() {
+		return this.all.size();
+	}
+
+	/**
+	 * Close all connections of the pool
+	 */
+	public void close() {
+		for (ConnectDB connectDB : this.all) {
+			connectDB.close();
+		}
+		this.idle.clear();
+	}
+}
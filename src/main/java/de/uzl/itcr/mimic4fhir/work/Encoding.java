@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.work;
+
+/**
+ * Serialization format of bundles (files, console and queue messages)
+ *
+ */
+public enum Encoding {
+	XML("xml"), JSON("json");
+
+	private final String fileExtension;
+
+	Encoding(String fileExtension) {
+		this.fileExtension = fileExtension;
+	}
+
+	/**
+	 * File extension without dot
+	 * 
+	 * @return file extension
+	 */
+	public String getFileExtension() {
+		return fileExtension;
+	}
+}
@@ -16,10 +16,15 @@
  ******************************************************************************/
 package de.uzl.itcr.mimic4fhir.work;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 
 import org.hl7.fhir.r4.model.Bundle;
 import org.slf4j.Logger;
@@ -27,6 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.client.apache.GZipContentInterceptor;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
@@ -45,6 +51,13 @@ public class FHIRComm {
 	private IGenericClient client;
 
 	private Config configuration;
+	private NdjsonWriter ndjsonWriter;
+	private FileSink fileSink;
+	private ServerUploader uploader;
+	private final BundleSizePolicy sizePolicy;
+
+	// parsers are not thread safe -> one per thread, reused for all bundles
+	private final ThreadLocal<IParser> parser = ThreadLocal.withInitial(this::newParser);
 
 	/**
 	 * Create new Fhir-Context with config-Object
@@ -52,7 +65,18 @@ public class FHIRComm {
 	 * @param config config-Object
 	 */
 	public FHIRComm(Config config) {
+		this(config, new BundleSizePolicy(config));
+	}
+
+	/**
+	 * Create new Fhir-Context with config-Object
+	 * 
+	 * @param config     config-Object
+	 * @param sizePolicy size policy of the run, adapted to the upload latency
+	 */
+	public FHIRComm(Config config, BundleSizePolicy sizePolicy) {
 		this.configuration = config;
+		this.sizePolicy = sizePolicy;
 		ctx = FhirContext.forR4();
 
 		// Use the narrative generator
@@ -67,55 +91,113 @@ public class FHIRComm {
 
 		// Set how long to block for individual read/write operations (in ms)
 		ctx.getRestfulClientFactory().setSocketTimeout(1500 * 1000);
+		// one connection per parallel transaction
+		ctx.getRestfulClientFactory().setPoolMaxPerRoute(Math.max(1, config.getUploadConcurrency()));
+		ctx.getRestfulClientFactory().setPoolMaxTotal(Math.max(1, config.getUploadConcurrency()));
 
 		// Gzip output content
 		client.registerInterceptor(new GZipContentInterceptor());
 	}
 
 	/**
-	 * Print bundle as xml to console
+	 * Print bundle to console. Several output threads print at the same time,
+	 * so the console is locked until the whole bundle is written.
 	 * 
 	 * @param transactionBundle bundle to print
 	 */
-	public void printBundleAsXml(Bundle transactionBundle) {
-		System.out.println(getBundleAsString(transactionBundle));
-
+	public void printBundle(Bundle transactionBundle) {
+		try {
+			synchronized (System.out) {
+				Writer writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+				encodeBundle(transactionBundle, writer);
+				writer.write(System.lineSeparator());
+				writer.flush();
+			}
+		} catch (IOException e) {
+			logger.error(e.getMessage());
+			e.printStackTrace();
+		}
 	}
 
 	/**
-	 * Save FHIR-Ressource-Bundle as xml to location specified in Config
+	 * Save FHIR-Ressource-Bundle as xml or json (see Config) to location specified
+	 * in Config. The file is written asynchronously, optionally compressed (see
+	 * {@link FileSink}).
 	 * 
 	 * @param number            Number of bundle. Use 0, if no number in file name
 	 *                          wanted ("bundle.xml")
 	 * @param transactionBundle bundle to print to file
+	 * @return completes when the file is written, exceptionally if that failed
 	 */
-	public void printBundleAsXmlToFile(String number, Bundle transactionBundle) {
-		try {
-			String xml = getBundleAsString(transactionBundle);
-
-			String fullFilePath;
-			if (!number.equals("0")) {
-				fullFilePath = configuration.getFhirxmlFilePath() + "bundle" + number + ".xml";
-			} else {
-				fullFilePath = configuration.getFhirxmlFilePath() + "bundle.xml";
-			}
-
-			Path path = Paths.get(fullFilePath);
-			byte[] strToBytes = xml.getBytes();
+	public CompletableFuture<Void> printBundleToFile(String number, Bundle transactionBundle) {
+		return getFileSink().write(number, transactionBundle);
+	}
 
-			/*
-			File xmlFile = new File(fullFilePath);
-			if(xmlFile.exists()) xmlFile.createNewFile();
-			 */
+	private synchronized FileSink getFileSink() {
+		if (fileSink == null) {
+			fileSink = new FileSink(this, configuration);
+		}
+		return fileSink;
+	}
 
-			// Write xml as file
-			Files.write(path, strToBytes);
+	/**
+	 * Append the resources of the bundle to the NDJSON files (one per resource
+	 * type) in the location specified in Config
+	 * 
+	 * @param transactionBundle bundle to write
+	 */
+	public void printBundleAsNdjson(Bundle transactionBundle) {
+		try {
+			getNdjsonWriter().write(transactionBundle);
 		} catch (Exception e) {
 			logger.error(e.getMessage());
 			e.printStackTrace();
 		}
 	}
 
+	private synchronized NdjsonWriter getNdjsonWriter() {
+		if (ndjsonWriter == null) {
+			ndjsonWriter = new NdjsonWriter(ctx, configuration.getFhirxmlFilePath(),
+					configuration.getNdjsonMaxFileSize() * 1024L * 1024L, configuration.getCompression());
+		}
+		return ndjsonWriter;
+	}
+
+	/**
+	 * Wait for pending uploads, flush and close open output files
+	 */
+	public synchronized void close() {
+		if (uploader != null) {
+			uploader.close();
+		}
+		if (fileSink != null) {
+			fileSink.close();
+		}
+		if (ndjsonWriter != null) {
+			ndjsonWriter.close();
+		}
+	}
+
+	/**
+	 * Upload bundle to fhir-server, several uploads run in parallel (see
+	 * {@link ServerUploader})
+	 * 
+	 * @param number            identification of the bundle
+	 * @param transactionBundle bundle to push to server
+	 * @return completes when the server accepted the bundle, exceptionally if the
+	 *         upload failed
+	 */
+	public CompletableFuture<Void> uploadBundle(String number, Bundle transactionBundle) {
+		return getUploader().upload(number, transactionBundle);
+	}
+
+	private synchronized ServerUploader getUploader() {
+		if (uploader == null) {
+			uploader = new ServerUploader(this, configuration, sizePolicy);
+		}
+		return uploader;
+	}
+
 	/**
 	 * Send complete bundle to fhir-server
 	 * 
@@ -145,23 +227,39 @@ public class FHIRComm {
 	}
 
 	/**
-	 * Get a bundle as xml string representation
+	 * Get a bundle as string representation (xml or json, see Config)
 	 * 
 	 * @param bundle bundle to transform into a string
-	 * @return bundle xml string
+	 * @return bundle string
 	 */
 	public String getBundleAsString(Bundle bundle) {
-		return ctx.newXmlParser().setPrettyPrint(true).encodeResourceToString(bundle);
+		return parser.get().encodeResourceToString(bundle);
 	}
 
 	/**
-	 * Parse xml string to bundle
+	 * Encode a bundle (xml or json, see Config) to a writer
 	 * 
-	 * @param bundle bundle as xml string
+	 * @param bundle bundle to encode
+	 * @param writer target, is not closed
+	 * @throws IOException if writing fails
+	 */
+	public void encodeBundle(Bundle bundle, Writer writer) throws IOException {
+		parser.get().encodeResourceToWriter(bundle, writer);
+	}
+
+	/**
+	 * Parse string (xml or json, see Config) to bundle
+	 * 
+	 * @param bundle bundle as string
 	 * @return bundle as Bundle
 	 */
 	public Bundle getBundleFromString(String bundle) {
-		return (Bundle) ctx.newXmlParser().setPrettyPrint(true).parseResource(bundle);
+		return parser.get().parseResource(Bundle.class, bundle);
+	}
+
+	private IParser newParser() {
+		IParser newParser = configuration.getEncoding() == Encoding.JSON ? ctx.newJsonParser() : ctx.newXmlParser();
+		return newParser.setPrettyPrint(configuration.isPrettyPrint());
 	}
 
 }
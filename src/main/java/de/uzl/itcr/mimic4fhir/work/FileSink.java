@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.work;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind file output: bundles are encoded and written (optionally
+ * compressed) by a pool of writer threads, so disk io overlaps with the
+ * conversion. If all writers are busy and the queue is full, the calling
+ * thread writes the bundle itself, which also limits the number of bundles
+ * held in memory.
+ */
+public class FileSink {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileSink.class);
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FHIRComm fhirComm;
+	private final Path directory;
+	private final String fileExtension;
+	private final Compression compression;
+	private final ThreadPoolExecutor writers;
+
+	/**
+	 * Create sink and start writer threads
+	 * 
+	 * @param fhirComm encoder of the bundles
+	 * @param config   Config-Object (output path, encoding, compression, number
+	 *                 of writers)
+	 */
+	public FileSink(FHIRComm fhirComm, Config config) {
+		this.fhirComm = fhirComm;
+		this.directory = Paths.get(config.getFhirxmlFilePath());
+		this.fileExtension = config.getEncoding().getFileExtension();
+		this.compression = config.getCompression();
+		int threads = Math.max(1, config.getFileWriterThreads());
+		this.writers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Queue bundle for writing
+	 * 
+	 * @param number Number of bundle. Use 0, if no number in file name wanted
+	 *               ("bundle.xml")
+	 * @param bundle bundle to write
+	 * @return completes when the file is written and closed, exceptionally if
+	 *         that failed
+	 */
+	public CompletableFuture<Void> write(String number, Bundle bundle) {
+		CompletableFuture<Void> written = new CompletableFuture<>();
+		writers.execute(() -> writeFile(number, bundle, written));
+		return written;
+	}
+
+	private void writeFile(String number, Bundle bundle, CompletableFuture<Void> written) {
+		String fileName = number.equals("0") ? "bundle" : "bundle" + number;
+		Path path = directory.resolve(fileName + "." + fileExtension + compression.getFileSuffix());
+		// encode directly into the (compressing) file stream, no string of the whole
+		// bundle
+		try (OutputStream out = compression.wrap(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE));
+				Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+			fhirComm.encodeBundle(bundle, writer);
+		} catch (Exception e) {
+			logger.error("Writing bundle {} failed: {}", number, e.getMessage());
+			e.printStackTrace();
+			written.completeExceptionally(e);
+			return;
+		}
+		written.complete(null);
+	}
+
+	/**
+	 * Wait until all queued bundles are written
+	 */
+	public void close() {
+		writers.shutdown();
+		try {
+			writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.work;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Writes the resources of transaction bundles as FHIR Bulk Data NDJSON: one
+ * compact json resource per line, one file per resource type
+ * (Patient.000001.ndjson, ...). A new file is started when a file reaches the
+ * maximum size.
+ * <p>
+ * Bundle-internal urn:uuid ids are replaced by plain ids and references are
+ * rewritten to Type/id. Conditionally created resources (ifNoneExist) get a
+ * name-based id derived from type and condition, so every copy of such a
+ * resource (e.g. the patient repeated in each bundle of an admission) has the
+ * same id, and conditional references (Type?condition) are resolved to it
+ * without any state. Copies already written are skipped: resources shared by
+ * all patients (locations, medications, ...) always, the others as long as
+ * they are remembered ({@value #WRITTEN_RESOURCES} resources); a repeated line
+ * has the same id and content.
+ * <p>
+ * The resources are rewritten on copies, the given bundles are not changed.
+ */
+public class NdjsonWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(NdjsonWriter.class);
+	private static final String URN_UUID = "urn:uuid:";
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long WRITTEN_RESOURCES = 1_000_000;
+	private static final Set<String> SHARED_TYPES = new HashSet<>(
+			Arrays.asList("Location", "Organization", "Medication", "Practitioner", "PractitionerRole"));
+
+	private final FhirContext ctx;
+	private final Path directory;
+	private final long maxFileSize;
+	private final Compression compression;
+	private final ConcurrentHashMap<String, TypeFile> files = new ConcurrentHashMap<>();
+	// type + condition of the written conditional creates: shared resources of
+	// the run, recently written resources of patients
+	private final Set<String> writtenShared = ConcurrentHashMap.newKeySet();
+	private final Cache<String, Boolean> writtenPatientResources = Caffeine.newBuilder()
+			.maximumSize(WRITTEN_RESOURCES).build();
+	private final ThreadLocal<IParser> parser;
+
+	/**
+	 * Create writer
+	 * 
+	 * @param ctx         FHIR context
+	 * @param directory   output directory
+	 * @param maxFileSize maximum size of one file in bytes (uncompressed)
+	 * @param compression compression of the files
+	 */
+	public NdjsonWriter(FhirContext ctx, String directory, long maxFileSize, Compression compression) {
+		this.ctx = ctx;
+		this.directory = Paths.get(directory);
+		this.maxFileSize = maxFileSize;
+		this.compression = compression;
+		this.parser = ThreadLocal.withInitial(() -> ctx.newJsonParser().setPrettyPrint(false));
+	}
+
+	/**
+	 * Write all resources of the bundle
+	 * 
+	 * @param bundle transaction bundle
+	 * @throws IOException if a file can't be written
+	 */
+	public void write(Bundle bundle) throws IOException {
+		// bundle internal reference -> reference for ndjson
+		Map<String, String> references = new HashMap<>();
+		// entries to write -> plain id
+		Map<BundleEntryComponent, String> ids = new IdentityHashMap<>();
+		for (BundleEntryComponent entry : bundle.getEntry()) {
+			Resource resource = entry.getResource();
+			String fullUrl = entry.getFullUrl();
+			String id = resource.getIdElement().getIdPart();
+			boolean written = false;
+			String condition = entry.getRequest().getIfNoneExist();
+			if (condition != null) {
+				String key = resource.fhirType() + "?" + condition;
+				id = conditionalId(key);
+				written = !markWritten(resource.fhirType(), key);
+			} else if (fullUrl != null && fullUrl.startsWith(URN_UUID)) {
+				id = fullUrl.substring(URN_UUID.length());
+			} else if (id == null || id.startsWith(URN_UUID)) {
+				id = id == null ? UUID.randomUUID().toString() : id.substring(URN_UUID.length());
+			}
+			if (!written) {
+				ids.put(entry, id);
+			}
+			if (fullUrl != null) {
+				references.put(fullUrl, resource.fhirType() + "/" + id);
+			}
+		}
+
+		FhirTerser terser = ctx.newTerser();
+		IParser parser = this.parser.get();
+		for (BundleEntryComponent entry : bundle.getEntry()) {
+			String id = ids.get(entry);
+			if (id == null) {
+				continue;
+			}
+			Resource resource = entry.getResource().copy();
+			resource.setId(id);
+			for (Reference ref : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+				String reference = ref.getReference();
+				String target = references.get(reference);
+				int separator = reference != null ? reference.indexOf('?') : -1;
+				if (target == null && separator > 0) {
+					// conditional reference to a resource of an earlier bundle
+					target = reference.substring(0, separator) + "/" + conditionalId(reference);
+				}
+				if (target != null) {
+					ref.setReference(target);
+				}
+			}
+			byte[] line = (parser.encodeResourceToString(resource) + "\n").getBytes(StandardCharsets.UTF_8);
+			files.computeIfAbsent(resource.fhirType(), TypeFile::new).write(line);
+		}
+	}
+
+	/**
+	 * Id of a conditionally created resource
+	 * 
+	 * @param key type?condition
+	 */
+	private static String conditionalId(String key) {
+		return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+	}
+
+	/**
+	 * Remember that a conditionally created resource is written
+	 * 
+	 * @return false if it was written before
+	 */
+	private boolean markWritten(String type, String key) {
+		if (SHARED_TYPES.contains(type)) {
+			return writtenShared.add(key);
+		}
+		return writtenPatientResources.asMap().putIfAbsent(key, Boolean.TRUE) == null;
+	}
+
+	/**
+	 * Flush and close all files
+	 */
+	public void close() {
+		for (TypeFile file : files.values()) {
+			file.close();
+		}
+	}
+
+	/**
+	 * Current file of a resource type
+	 */
+	private class TypeFile {
+		private final String type;
+		private int sequence = 0;
+		private long size = 0;
+		private OutputStream out;
+
+		TypeFile(String type) {
+			this.type = type;
+		}
+
+		synchronized void write(byte[] line) throws IOException {
+			if (out == null || (size > 0 && size + line.length > maxFileSize)) {
+				rotate();
+			}
+			out.write(line);
+			size += line.length;
+		}
+
+		private void rotate() throws IOException {
+			if (out != null) {
+				out.close();
+			}
+			sequence++;
+			size = 0;
+			Files.createDirectories(directory);
+			Path file = directory.resolve(String.format("%s.%06d.ndjson%s", type, sequence, compression.getFileSuffix()));
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			out = compression.wrap(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+		}
+
+		synchronized void close() {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					logger.error("Closing {} file failed: {}", type, e.getMessage());
+				}
+				out = null;
+			}
+		}
+	}
+}
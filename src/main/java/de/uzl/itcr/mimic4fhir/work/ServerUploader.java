@@ -0,0 +1,459 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.work;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Uploads transaction bundles to the FHIR server with several transactions in
+ * flight. The number of parallel transactions adapts to the server (AIMD):
+ * it grows by one after a window of fast responses and is halved if the
+ * server answers 429/503 or responses get slower than the target latency.
+ * Throttled transactions are retried with backoff. The latency of every
+ * upload is written to upload-timings.csv.
+ * 
+ * Bundles of an admission are numbered {@code <patient>_<admission>_<index>}
+ * with the index counting from 1. Follow-up bundles reference resources
+ * created by the first bundle, so a bundle is held until its predecessor was
+ * sent, whatever order the output workers hand them over in.
+ * 
+ * Admissions of one patient are uploaded in parallel (large patients are
+ * converted by several threads, see CostScheduler). Every basic bundle
+ * creates the patient conditionally, which is only safe once the patient
+ * exists: the first bundle of a later admission waits for the first bundle of
+ * the patient ({@code <patient>_1_1}).
+ * 
+ * Held bundles are kept in memory and count as accepted: their future
+ * completes at once, so a RabbitMQ consumer acknowledges them and keeps
+ * receiving until the bundle they wait for arrives. Upload errors of held
+ * bundles are only logged.
+ */
+public class ServerUploader {
+
+	private static final Logger logger = LoggerFactory.getLogger(ServerUploader.class);
+	private static final String TIMINGS_FILE = "upload-timings.csv";
+	private static final long INITIAL_BACKOFF_MILLIS = 1000;
+	// admissions whose next index is remembered after their bundles were sent
+	private static final long FINISHED_ADMISSIONS = 100_000;
+
+	private final FHIRComm fhirComm;
+	private final BundleSizePolicy sizePolicy;
+	private final int maxConcurrency;
+	private final long targetLatencyMillis;
+	private final int maxRetries;
+	private final ExecutorService executor;
+	private final ConcurrentLinkedQueue<String> timings = new ConcurrentLinkedQueue<>();
+	// uploads not completed yet
+	private final Set<CompletableFuture<Void>> uploads = ConcurrentHashMap.newKeySet();
+
+	// admissions with bundles in flight or held, guarded by itself
+	private final Map<String, Sequence> sequences = new HashMap<>();
+	// next index of idle admissions, in case a late follow-up bundle arrives
+	private final Cache<String, Integer> finished = Caffeine.newBuilder().maximumSize(FINISHED_ADMISSIONS).build();
+	// patients whose first bundle was sent
+	private final Cache<String, Boolean> createdPatients = Caffeine.newBuilder().maximumSize(FINISHED_ADMISSIONS)
+			.build();
+	// first bundles of later admissions waiting for the patient, guarded by sequences
+	private final Map<String, List<Runnable>> waitingForPatient = new HashMap<>();
+
+	// adaptive limit and queued uploads, guarded by this
+	private int limit = 1;
+	private int inFlight = 0;
+	private int fastResponses = 0;
+	private int queued = 0;
+
+	/**
+	 * Upload order of the bundles of one admission
+	 */
+	private static class Sequence {
+		// index that may be sent next (all before it are sent)
+		int next;
+		int running = 0;
+		final Map<Integer, Runnable> held = new HashMap<>();
+
+		Sequence(int next) {
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Create uploader
+	 * 
+	 * @param fhirComm   Fhir-Communication that sends a single transaction
+	 * @param config     Config-Object (maximum concurrency, target latency,
+	 *                   retries)
+	 * @param sizePolicy size policy of the run, adapted to the latency
+	 */
+	public ServerUploader(FHIRComm fhirComm, Config config, BundleSizePolicy sizePolicy) {
+		this.fhirComm = fhirComm;
+		this.sizePolicy = sizePolicy;
+		this.maxConcurrency = Math.max(1, config.getUploadConcurrency());
+		this.targetLatencyMillis = config.getUploadTargetLatency();
+		this.maxRetries = config.getUploadRetries();
+		this.executor = Executors.newFixedThreadPool(this.maxConcurrency);
+	}
+
+	/**
+	 * Start upload of the bundle. Blocks while too many uploads are queued;
+	 * bundles held for their predecessor don't block.
+	 * 
+	 * @param number identification of the bundle
+	 * @param bundle transaction bundle
+	 * @return completes when the server accepted the bundle, exceptionally if the
+	 *         upload failed; completed at once if the bundle is held
+	 */
+	public CompletableFuture<Void> upload(String number, Bundle bundle) {
+		CompletableFuture<Void> upload = new CompletableFuture<>();
+		uploads.add(upload);
+		upload.whenComplete((result, error) -> {
+			uploads.remove(upload);
+			if (error != null) {
+				logger.error("Upload of bundle {} failed: {}", number, error.getMessage());
+			}
+		});
+
+		if (hold(number, () -> start(number, bundle, upload))) {
+			// held in memory -> the caller must not wait for the predecessor
+			return CompletableFuture.completedFuture(null);
+		}
+		try {
+			awaitCapacity();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			finished(number);
+			upload.completeExceptionally(e);
+			return upload;
+		}
+		start(number, bundle, upload);
+		return upload;
+	}
+
+	/**
+	 * Hold the bundle if its predecessor was not sent yet
+	 * 
+	 * @return true if the bundle is started later by its predecessor
+	 */
+	private boolean hold(String number, Runnable start) {
+		int index = indexInAdmission(number);
+		if (index < 0) {
+			return false;
+		}
+		String admission = number.substring(0, number.lastIndexOf('_'));
+		synchronized (sequences) {
+			Sequence sequence = sequences.get(admission);
+			if (sequence == null) {
+				Integer next = finished.getIfPresent(admission);
+				finished.invalidate(admission);
+				sequence = new Sequence(next != null ? next : 1);
+				sequences.put(admission, sequence);
+			}
+			// a redelivered bundle already held is sent directly
+			if (index > sequence.next && !sequence.held.containsKey(index)) {
+				sequence.held.put(index, start);
+				return true;
+			}
+			sequence.running++;
+			if (index == 1 && waitForPatient(admission, start)) {
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Hold the basic bundle of a later admission until the patient was created
+	 * by its first bundle
+	 * 
+	 * @return true if the bundle is started once the patient exists
+	 */
+	private boolean waitForPatient(String admission, Runnable start) {
+		int separator = admission.indexOf('_');
+		String patient = admission.substring(0, separator);
+		if ("1".equals(admission.substring(separator + 1)) || createdPatients.getIfPresent(patient) != null) {
+			return false;
+		}
+		waitingForPatient.computeIfAbsent(patient, key -> new ArrayList<>()).add(start);
+		return true;
+	}
+
+	/**
+	 * Index of the bundle within its admission
+	 * 
+	 * @return index, -1 if the bundle is not part of an admission
+	 */
+	private static int indexInAdmission(String number) {
+		int last = number.lastIndexOf('_');
+		if (last < 0 || number.indexOf('_') == last) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(number.substring(last + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Bundle sent (or failed): start the held successor
+	 */
+	private void finished(String number) {
+		int index = indexInAdmission(number);
+		if (index < 0) {
+			return;
+		}
+		String admission = number.substring(0, number.lastIndexOf('_'));
+		List<Runnable> successors = new ArrayList<>();
+		synchronized (sequences) {
+			int separator = admission.indexOf('_');
+			if (index == 1 && "1".equals(admission.substring(separator + 1))) {
+				// first bundle of the patient
+				String patient = admission.substring(0, separator);
+				createdPatients.put(patient, Boolean.TRUE);
+				List<Runnable> waiting = waitingForPatient.remove(patient);
+				if (waiting != null) {
+					successors.addAll(waiting);
+				}
+			}
+			Sequence sequence = sequences.get(admission);
+			if (sequence == null) {
+				return;
+			}
+			sequence.running--;
+			if (index == sequence.next) {
+				sequence.next++;
+				Runnable successor = sequence.held.remove(sequence.next);
+				if (successor != null) {
+					sequence.running++;
+					successors.add(successor);
+				}
+			}
+			if (sequence.running == 0 && sequence.held.isEmpty()) {
+				sequences.remove(admission);
+				finished.put(admission, sequence.next);
+			}
+		}
+		for (Runnable successor : successors) {
+			synchronized (this) {
+				queued++;
+			}
+			successor.run();
+		}
+	}
+
+	private void start(String number, Bundle bundle, CompletableFuture<Void> upload) {
+		executor.execute(() -> {
+			try {
+				acquire();
+				try {
+					send(number, bundle);
+				} finally {
+					release();
+				}
+				upload.complete(null);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				upload.completeExceptionally(e);
+			} catch (RuntimeException e) {
+				upload.completeExceptionally(e);
+			} finally {
+				// successor is queued before this one leaves -> close() sees no gap
+				finished(number);
+				dequeued();
+			}
+		});
+	}
+
+	private void send(String number, Bundle bundle) {
+		for (int attempt = 1;; attempt++) {
+			long start = System.nanoTime();
+			try {
+				fhirComm.bundleToServer(bundle);
+				long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				onResponse(millis);
+				sizePolicy.recordTransaction(bundle.getEntry().size(), millis);
+				record(number, bundle, attempt, 200, millis);
+				return;
+			} catch (BaseServerResponseException e) {
+				long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				int status = e.getStatusCode();
+				boolean throttled = status == 429 || status == 503;
+				if (throttled) {
+					onOverload();
+				}
+				record(number, bundle, attempt, status, millis);
+				if (!throttled || attempt > maxRetries) {
+					throw e;
+				}
+				backoff(attempt);
+			} catch (RuntimeException e) {
+				long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				record(number, bundle, attempt, 0, millis);
+				throw e;
+			}
+		}
+	}
+
+	private void backoff(int attempt) {
+		try {
+			Thread.sleep(INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 6));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized void acquire() throws InterruptedException {
+		while (inFlight >= limit) {
+			wait();
+		}
+		inFlight++;
+	}
+
+	private synchronized void release() {
+		inFlight--;
+		notifyAll();
+	}
+
+	private synchronized void awaitCapacity() throws InterruptedException {
+		while (queued >= 2 * maxConcurrency) {
+			wait();
+		}
+		queued++;
+	}
+
+	private synchronized void dequeued() {
+		queued--;
+		notifyAll();
+	}
+
+	private synchronized void onResponse(long millis) {
+		if (targetLatencyMillis > 0 && millis > targetLatencyMillis) {
+			onOverload();
+			return;
+		}
+		// additive increase: one more after a full window of fast responses
+		if (++fastResponses >= limit && limit < maxConcurrency) {
+			limit++;
+			fastResponses = 0;
+			logger.debug("Upload concurrency increased to {}", limit);
+		}
+	}
+
+	private synchronized void onOverload() {
+		// multiplicative decrease
+		limit = Math.max(1, limit / 2);
+		fastResponses = 0;
+		logger.debug("Upload concurrency decreased to {}", limit);
+	}
+
+	private void record(String number, Bundle bundle, int attempt, int status, long millis) {
+		int concurrency;
+		synchronized (this) {
+			concurrency = limit;
+		}
+		timings.add(String.format("%s,%d,%d,%d,%d,%d", number, bundle.getEntry().size(), attempt, status, millis,
+				concurrency));
+	}
+
+	/**
+	 * Wait for all uploads and write the upload timings. Bundles still held
+	 * because their predecessor never arrived are sent in order of their number.
+	 */
+	public void close() {
+		try {
+			while (true) {
+				synchronized (this) {
+					while (queued > 0) {
+						wait();
+					}
+				}
+				List<Runnable> orphans = new ArrayList<>();
+				synchronized (sequences) {
+					// first bundle of the patient never arrived
+					for (List<Runnable> waiting : waitingForPatient.values()) {
+						orphans.addAll(waiting);
+					}
+					waitingForPatient.clear();
+					for (Sequence sequence : sequences.values()) {
+						if (sequence.running == 0 && !sequence.held.isEmpty()) {
+							sequence.next = Collections.min(sequence.held.keySet());
+							sequence.running++;
+							orphans.add(sequence.held.remove(sequence.next));
+						}
+					}
+				}
+				if (orphans.isEmpty()) {
+					break;
+				}
+				for (Runnable orphan : orphans) {
+					synchronized (this) {
+						queued++;
+					}
+					orphan.run();
+				}
+			}
+			// failures are logged per upload
+			CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).handle((result, error) -> null)
+					.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		}
+		try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(TIMINGS_FILE), StandardCharsets.UTF_8)) {
+			writer.write("bundle,resources,attempt,status,time_milliseconds,concurrency");
+			writer.newLine();
+			for (String timing : timings) {
+				writer.write(timing);
+				writer.newLine();
+			}
+			logger.info("Wrote upload timings to {}", TIMINGS_FILE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
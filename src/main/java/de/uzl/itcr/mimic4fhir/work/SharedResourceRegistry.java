@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.work;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic4fhir.model.MStation;
+import de.uzl.itcr.mimic4fhir.model.manager.StationManager;
+
+/**
+ * Resources that are shared by all patients of a run (hospital, wards and
+ * their organizations, medications). Each of them is sent only once, in a
+ * reference data bundle, and patient bundles reference it by a conditional
+ * reference (e.g. Location?identifier=system|value) instead of repeating a
+ * conditional create in every bundle.
+ * <p>
+ * Hospital and stations are sent up front by {@link #shareStations()},
+ * resources found during the conversion are sent on first use. A reference
+ * data bundle is written before any bundle that references its resources is
+ * handed to the output.
+ * <p>
+ * Only resources with a code or identifier can be found by a conditional
+ * reference ({@link #isShareable(Resource)}), others stay in the patient
+ * bundle.
+ */
+public class SharedResourceRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(SharedResourceRegistry.class);
+
+	private final BundleSizePolicy sizePolicy;
+	private final StationManager stations;
+	private final BiConsumer<String, Bundle> referenceDataOutput;
+	private final Organization hospital;
+
+	// conditional reference -> completed once the resource has been written
+	private final ConcurrentHashMap<String, CompletableFuture<Void>> shared = new ConcurrentHashMap<>();
+	private final AtomicInteger bundleNumber = new AtomicInteger();
+
+	/**
+	 * Create registry
+	 * 
+	 * @param sizePolicy          size policy of the run
+	 * @param stations            stations of the hospital
+	 * @param referenceDataOutput writes a reference data bundle (number, bundle)
+	 *                            and returns once it is persisted
+	 */
+	public SharedResourceRegistry(BundleSizePolicy sizePolicy, StationManager stations,
+			BiConsumer<String, Bundle> referenceDataOutput) {
+		this.sizePolicy = sizePolicy;
+		this.stations = stations;
+		this.referenceDataOutput = referenceDataOutput;
+		this.hospital = createTopHospital();
+	}
+
+	/**
+	 * The "dummy" top Organization of PractitionerRoles and Locations
+	 * 
+	 * @return hospital
+	 */
+	public Organization getHospital() {
+		return hospital;
+	}
+
+	/**
+	 * Send hospital, all stations and their organizations in one reference data
+	 * bundle. Call before the conversion starts.
+	 */
+	public void shareStations() {
+		List<Resource> resources = new ArrayList<>();
+		resources.add(hospital);
+		for (MStation station : stations.getStations()) {
+			// organization first, the location references it
+			resources.add(stations.getOrganization(station));
+			resources.add(stations.getLocation(station));
+		}
+		share(resources);
+	}
+
+	/**
+	 * Make sure the resources are written. Resources that are new to the run are
+	 * sent together in one reference data bundle, for resources another thread
+	 * is just sending this method waits.
+	 * 
+	 * @param resources shared resources
+	 */
+	public void share(Collection<? extends Resource> resources) {
+		CompletableFuture<Void> own = new CompletableFuture<>();
+		List<String> ownKeys = new ArrayList<>();
+		BundleControl bundle = new BundleControl(sizePolicy);
+		List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+		for (Resource resource : resources) {
+			String condition = getCondition(resource);
+			if (condition == null) {
+				throw new IllegalArgumentException("Resource can't be shared: " + resource.fhirType());
+			}
+			String key = resource.fhirType() + "?" + condition;
+			CompletableFuture<Void> existing = shared.putIfAbsent(key, own);
+			if (existing == null) {
+				ownKeys.add(key);
+				bundle.addUUIDResourceWithConditionToBundle(resource, condition);
+			} else if (existing != own) {
+				pending.add(existing);
+			}
+		}
+
+		if (!ownKeys.isEmpty()) {
+			try {
+				referenceDataOutput.accept("shared_" + bundleNumber.incrementAndGet(), bundle.getTransactionBundle());
+				own.complete(null);
+			} catch (RuntimeException e) {
+				// not written -> next use tries again
+				for (String key : ownKeys) {
+					shared.remove(key, own);
+				}
+				own.completeExceptionally(e);
+				logger.error("Writing reference data failed: {}", e.getMessage());
+			}
+		}
+
+		for (CompletableFuture<Void> future : pending) {
+			try {
+				future.join();
+			} catch (CompletionException e) {
+				logger.error("Reference data not available: {}", e.getCause().getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Check if the resource can be shared, i.e. found by a conditional reference
+	 * (medications without code can't)
+	 * 
+	 * @param resource resource of a shared type
+	 * @return true if the resource has a code or identifier
+	 */
+	public boolean isShareable(Resource resource) {
+		return getCondition(resource) != null;
+	}
+
+	/**
+	 * Conditional reference to a shared resource, the resource is written
+	 * first if it is new to the run
+	 * 
+	 * @param resource shared resource, see {@link #isShareable(Resource)}
+	 * @return reference for resources of patient bundles
+	 */
+	public Reference getReference(Resource resource) {
+		String key = resource.fhirType() + "?" + getCondition(resource);
+		CompletableFuture<Void> written = shared.get(key);
+		if (written == null || !written.isDone()) {
+			share(Collections.singletonList(resource));
+		}
+		return new Reference(key);
+	}
+
+	/**
+	 * Search condition that identifies a shared resource: the code of
+	 * medications, the first identifier of the others. The getters used don't
+	 * create missing elements, the resource is not changed.
+	 * 
+	 * @return condition, null if the resource has no code or identifier
+	 */
+	private String getCondition(Resource resource) {
+		List<Identifier> identifiers;
+		if (resource instanceof Medication) {
+			Medication medication = (Medication) resource;
+			if (!medication.hasCode() || !medication.getCode().hasCoding()) {
+				return null;
+			}
+			String code = medication.getCode().getCoding().get(0).getCode();
+			return code != null ? "code=" + code : null;
+		} else if (resource instanceof Location) {
+			identifiers = ((Location) resource).getIdentifier();
+		} else if (resource instanceof Organization) {
+			identifiers = ((Organization) resource).getIdentifier();
+		} else if (resource instanceof Practitioner) {
+			identifiers = ((Practitioner) resource).getIdentifier();
+		} else {
+			throw new IllegalArgumentException("No shared resource: " + resource.fhirType());
+		}
+		if (identifiers.isEmpty() || identifiers.get(0).getValue() == null) {
+			return null;
+		}
+		Identifier identifier = identifiers.get(0);
+		return "identifier=" + identifier.getSystem() + "|" + identifier.getValue();
+	}
+
+	private Organization createTopHospital() {
+		// Create a "dummy" Organization that is "top player" of PractitionerRoles and
+		// Locations
+		Organization hospital = new Organization();
+		hospital.addIdentifier().setSystem("http://www.imi-mimic.de").setValue("hospital");
+		hospital.addType().addCoding().setCode("prov").setSystem("http://hl7.org/fhir/organization-type")
+				.setDisplay("Healthcare Provider");
+		hospital.setName("IMI-Mimic Hospital");
+		hospital.setId(IdDt.newRandomUuid());
+		return hospital;
+	}
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (C) 2021 S. Ververs, P. Behrend, J. Wiedekopf, H.Ulrich - University of Lübeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package de.uzl.itcr.mimic4fhir.work;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Upload order of {@link ServerUploader}: bundles of an admission in the order
+ * of their number, later admissions after the first bundle of the patient
+ */
+public class ServerUploaderTest {
+
+	private RecordingComm fhirComm;
+	private ServerUploader uploader;
+
+	/**
+	 * Records the transactions instead of sending them
+	 */
+	private static class RecordingComm extends FHIRComm {
+		final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+		// bundle that is not sent until released
+		volatile String blocked;
+		final CompletableFuture<Void> release = new CompletableFuture<>();
+
+		RecordingComm(Config config) {
+			super(config);
+		}
+
+		@Override
+		public void bundleToServer(Bundle transactionBundle) {
+			if (transactionBundle.getId().equals(blocked)) {
+				release.join();
+			}
+			sent.add(transactionBundle.getId());
+		}
+	}
+
+	@Before
+	public void setUp() {
+		Config config = new Config();
+		config.setFhirServer("http://localhost:8080/fhir");
+		config.setUploadConcurrency(4);
+		config.setUploadTargetLatency(0);
+		fhirComm = new RecordingComm(config);
+		uploader = new ServerUploader(fhirComm, config, new BundleSizePolicy(config));
+	}
+
+	private CompletableFuture<Void> upload(String number) {
+		Bundle bundle = new Bundle();
+		bundle.setId(number);
+		return uploader.upload(number, bundle);
+	}
+
+	@Test
+	public void followUpsAreSentInOrderOfTheirNumber() {
+		upload("1_1_3");
+		upload("1_1_2");
+		upload("1_1_1");
+		uploader.close();
+
+		assertEquals(Arrays.asList("1_1_1", "1_1_2", "1_1_3"), fhirComm.sent);
+	}
+
+	@Test
+	public void laterAdmissionWaitsForTheFirstBundleOfThePatient() {
+		upload("1_2_1");
+		upload("1_2_2");
+		upload("1_1_1");
+		uploader.close();
+
+		assertEquals(Arrays.asList("1_1_1", "1_2_1", "1_2_2"), fhirComm.sent);
+	}
+
+	@Test
+	public void heldBundlesAreAcceptedAtOnce() {
+		fhirComm.blocked = "1_1_1";
+		CompletableFuture<Void> first = upload("1_1_1");
+		CompletableFuture<Void> followUp = upload("1_1_2");
+		CompletableFuture<Void> laterAdmission = upload("1_2_1");
+
+		// the consumer may acknowledge held bundles before their predecessor is sent
+		assertFalse(first.isDone());
+		assertTrue(followUp.isDone());
+		assertTrue(laterAdmission.isDone());
+
+		fhirComm.release.complete(null);
+		uploader.close();
+		assertEquals("1_1_1", fhirComm.sent.get(0));
+		assertEquals(3, fhirComm.sent.size());
+	}
+
+	@Test
+	public void closeSendsBundlesWhosePredecessorNeverArrived() {
+		upload("2_1_3");
+		upload("2_1_2");
+		upload("3_2_1");
+		uploader.close();
+
+		assertEquals(3, fhirComm.sent.size());
+		assertTrue(fhirComm.sent.contains("3_2_1"));
+		assertTrue(fhirComm.sent.indexOf("2_1_2") < fhirComm.sent.indexOf("2_1_3"));
+	}
+
+	@Test
+	public void bundlesWithoutAdmissionAreNotHeld() {
+		CompletableFuture<Void> shared = upload("shared_1");
+		CompletableFuture<Void> cxr = upload("4_1");
+		uploader.close();
+
+		assertTrue(shared.isDone());
+		assertTrue(cxr.isDone());
+		assertEquals(2, fhirComm.sent.size());
+	}
+}